@@ -0,0 +1,71 @@
+package tsrcore;
+
+import arc.util.Log;
+
+/**
+ * <p>Stops calls to a service that keeps failing, so callers fail fast instead of waiting on timeouts.</p>
+ * <p>After a number of failures in a row the breaker opens and every call is refused. Once the open time passed,
+ * a single trial call is let through. If it succeeds the breaker closes again, otherwise it stays open for another round.</p>
+ */
+public class CircuitBreaker {
+    private final String name;
+    private final int failureThreshold;
+    private final long openTime;
+    private int failures;
+    private long openedAt = -1;
+    private boolean trial;
+
+    /**
+     * Create a new closed circuit breaker
+     * @param name The name of the service, used in log messages
+     * @param failureThreshold The amount of failures in a row after which the breaker opens
+     * @param openTime The time in seconds calls are refused before a trial call is let through
+     */
+    public CircuitBreaker(String name, int failureThreshold, float openTime) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openTime = (long) (openTime * 1000);
+    }
+
+    /**
+     * Check if a call may be made. Every allowed call has to be followed by {@link #success()} or {@link #failure()}
+     * @return Whether the call may be made
+     */
+    public synchronized boolean allow() {
+        if (openedAt < 0) return true;
+        if (trial || System.currentTimeMillis() - openedAt < openTime) return false;
+        trial = true;
+        return true;
+    }
+
+    /**
+     * Report a successful call
+     * @return Whether this closed the breaker
+     */
+    public synchronized boolean success() {
+        failures = 0;
+        trial = false;
+        if (openedAt < 0) return false;
+        openedAt = -1;
+        Log.info(name + " is available again");
+        return true;
+    }
+
+    /**
+     * Report a failed call
+     */
+    public synchronized void failure() {
+        failures++;
+        if (!trial && failures < failureThreshold) return;
+        if (openedAt < 0) Log.warn(name + " is unavailable, retrying in " + openTime / 1000 + "s");
+        openedAt = System.currentTimeMillis();
+        trial = false;
+    }
+
+    /**
+     * @return Whether calls are currently refused. False once a trial call is due
+     */
+    public synchronized boolean isOpen() {
+        return openedAt >= 0 && (trial || System.currentTimeMillis() - openedAt < openTime);
+    }
+}
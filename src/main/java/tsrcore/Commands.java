@@ -1,6 +1,12 @@
 package tsrcore;
 
-public class Commands extends DataStorage {
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Commands extends IntDataStorage {
+    private final AtomicInteger version = new AtomicInteger();
+    // Set while a missing permission level is filled with its default, which doesn't change any permission check
+    private final ThreadLocal<Boolean> filling = ThreadLocal.withInitial(() -> false);
+
     /**
      * <p>Create a new commands object.</p>
      * <p>The file is automatically created if it is not present.</p>
@@ -9,6 +15,25 @@ public class Commands extends DataStorage {
      */
     public Commands(String path) {
         super(path);
+        listen((commandName, permissionLevel) -> {
+            if (!filling.get()) version.incrementAndGet();
+        });
+    }
+
+    @Override
+    public synchronized void load() {
+        super.load();
+        // Called by the super constructor before the version exists
+        if (version != null) version.incrementAndGet();
+    }
+
+    /**
+     * <p>Filling in the default of a missing permission level doesn't count as a change,
+     * as the checks already used the default before.</p>
+     * @return A number that changes whenever a permission level changes, so permission checks can be cached
+     */
+    public int version() {
+        return version.get();
     }
 
     /**
@@ -37,7 +62,20 @@ public class Commands extends DataStorage {
      * @return The permission level of the command
      */
     public int get(String commandName, int notFound) {
-        return super.getInt(commandName, notFound);
+        return getInt(commandName, notFound);
+    }
+
+    @Override
+    public int getInt(String key, int notFound) {
+        Integer value = getInt(key);
+        if (value != null) return value;
+        filling.set(true);
+        try {
+            set(key, String.valueOf(notFound));
+        } finally {
+            filling.set(false);
+        }
+        return notFound;
     }
 
     /**
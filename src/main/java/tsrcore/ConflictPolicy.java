@@ -0,0 +1,59 @@
+package tsrcore;
+
+import java.util.Objects;
+
+/**
+ * <p>Decides what happens when a player data field was changed by this server and another server at the same time.</p>
+ * <p>Used when several servers share one database, see {@link Database#conflictPolicy(String, ConflictPolicy)}.</p>
+ */
+public enum ConflictPolicy {
+    /** The value of the server that saves last wins. This is the default */
+    OVERWRITE,
+    /** The changes of all servers are added up, like for money. Only works for int and double fields */
+    ADDITIVE,
+    /** The value of the server that saved first wins, and the changes of this server are dropped */
+    KEEP_REMOTE;
+
+    /**
+     * Get the value to write
+     * @param type The type of the field
+     * @param local The value of this server
+     * @param base The value this server last read from or wrote to the database
+     * @param remote The current value in the database
+     * @return The merged value
+     */
+    Object resolve(FieldType type, Object local, Object base, Object remote) {
+        // Nobody else changed the field
+        if (Objects.equals(base, remote)) return local;
+        switch (this) {
+            case ADDITIVE:
+                // Only numeric fields can be additive, see Database#conflictPolicy
+                FieldType.Arithmetic arithmetic = type.arithmetic();
+                return arithmetic.add(remote, arithmetic.subtract(local, base));
+            case KEEP_REMOTE:
+                return remote;
+            default:
+                return local;
+        }
+    }
+
+    /**
+     * <p>Get the value to write for a player whose row this server never read, like one that joined while the database
+     * was unavailable and got their local data.</p>
+     * <p>Unless the field is additive, a value that started at or is the default never replaces what another server wrote,
+     * so a player without local data can't reset or take over a password or role.</p>
+     * @param type The type of the field
+     * @param local The value of this server
+     * @param base The local value the changes were based on, or null if the player had none and got the default value
+     * @param defaultValue The default value of the field
+     * @param remote The current value in the database
+     * @return The merged value
+     */
+    Object resolveUnread(FieldType type, Object local, Object base, Object defaultValue, Object remote) {
+        if (this == ADDITIVE) return resolve(type, local, base == null ? defaultValue : base, remote);
+        // Nothing was written by another server
+        if (Objects.equals(remote, defaultValue)) return local;
+        if (base == null || Objects.equals(local, defaultValue)) return remote;
+        return resolve(type, local, base, remote);
+    }
+}
@@ -0,0 +1,244 @@
+package tsrcore;
+
+import arc.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>A bounded pool of database connections.</p>
+ * <p>Connections are checked before they are handed out, so connections closed by the server after a timeout or restart
+ * are replaced transparently. If the database can't be reached, new attempts are delayed more and more, up to a minute,
+ * so a database that is down doesn't block every query. Connections that weren't used for a while are closed.</p>
+ * <p>Closing a borrowed connection returns it to the pool.</p>
+ */
+public class ConnectionPool {
+    private static final int validationTimeout = 2;
+    private static final long minBackoff = 1000;
+    private static final long maxBackoff = 60000;
+
+    private final String connectString;
+    private final int size;
+    private final long idleTimeout;
+    private final Semaphore permits;
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile long timeout = 10000;
+    private long backoff;
+    private long nextAttempt;
+    private volatile boolean closed;
+
+    /**
+     * Create a new connection pool. No connection is opened until one is needed
+     * @param connectString The JDBC connect string
+     * @param size The max amount of open connections
+     * @param idleTimeout The time in seconds after which unused connections are closed
+     */
+    public ConnectionPool(String connectString, int size, float idleTimeout) {
+        this.connectString = connectString;
+        this.size = Math.max(1, size);
+        this.idleTimeout = (long) (idleTimeout * 1000);
+        this.permits = new Semaphore(this.size, true);
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TSRCore-Database-Pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1000, this.idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>Borrow a connection from the pool, opening a new one if needed.</p>
+     * <p>Waits if all connections are in use. The connection has to be closed after use to return it to the pool.</p>
+     * @return A valid connection
+     * @throws SQLException If no connection could be opened
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new SQLException("Timed out waiting for a database connection");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+
+        try {
+            Connection connection;
+            while ((connection = pollIdle()) != null) {
+                if (isValid(connection)) return wrap(connection);
+                closeQuietly(connection);
+            }
+            return wrap(open());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Set the latency budget of the pool.</p>
+     * <p>Borrowing a connection fails if none is free within the budget, and statements created from
+     * borrowed connections are cancelled by the driver if they take longer.</p>
+     * @param seconds The budget in seconds, 10 by default
+     * @return This pool
+     */
+    public ConnectionPool timeout(float seconds) {
+        timeout = Math.max(1, (long) (seconds * 1000));
+        return this;
+    }
+
+    /**
+     * @return The max amount of open connections
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Close all unused connections and stop handing out new ones. Borrowed connections are closed when they are returned
+     */
+    public void close() {
+        closed = true;
+        evictor.shutdown();
+        synchronized (idle) {
+            for (Idle entry : idle) closeQuietly(entry.connection);
+            idle.clear();
+        }
+    }
+
+    private Connection open() throws SQLException {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now < nextAttempt)
+                throw new SQLException("Database unavailable, reconnecting in " + (nextAttempt - now) / 1000 + "s");
+        }
+        try {
+            Connection connection = DriverManager.getConnection(connectString);
+            synchronized (this) {
+                if (backoff != 0) Log.info("Reconnected to DB");
+                backoff = 0;
+                nextAttempt = 0;
+            }
+            return connection;
+        } catch (SQLException e) {
+            synchronized (this) {
+                backoff = backoff == 0 ? minBackoff : Math.min(backoff * 2, maxBackoff);
+                nextAttempt = System.currentTimeMillis() + backoff;
+            }
+            throw e;
+        }
+    }
+
+    private Connection pollIdle() {
+        synchronized (idle) {
+            // Most recently used first, so rarely needed connections time out
+            Idle entry = idle.pollFirst();
+            return entry == null ? null : entry.connection;
+        }
+    }
+
+    private void release(Connection connection) {
+        try {
+            boolean reusable = !closed && !connection.isClosed();
+            if (reusable && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (reusable) {
+                synchronized (idle) {
+                    idle.addFirst(new Idle(connection, System.currentTimeMillis()));
+                }
+            } else {
+                closeQuietly(connection);
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void evictIdle() {
+        long oldest = System.currentTimeMillis() - idleTimeout;
+        synchronized (idle) {
+            Iterator<Idle> entries = idle.descendingIterator();
+            while (entries.hasNext()) {
+                Idle entry = entries.next();
+                if (entry.since > oldest) break;
+                entries.remove();
+                closeQuietly(entry.connection);
+            }
+        }
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(validationTimeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * Wrap a connection, so closing it returns it to the pool instead
+     */
+    private Connection wrap(Connection connection) {
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close":
+                    if (released.compareAndSet(false, true)) release(connection);
+                    return null;
+                case "isClosed":
+                    return released.get() || connection.isClosed();
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(connection)) return connection;
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+            }
+            if (released.get()) throw new SQLException("Connection was returned to the pool");
+            Object result;
+            try {
+                result = method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            // Also covers prepared statements and calls
+            if (result instanceof Statement) ((Statement) result).setQueryTimeout((int) Math.max(1, (timeout + 999) / 1000));
+            return result;
+        });
+    }
+
+    private static class Idle {
+        final Connection connection;
+        final long since;
+
+        Idle(Connection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+}
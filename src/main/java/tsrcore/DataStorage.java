@@ -1,16 +1,61 @@
 package tsrcore;
 
-import arc.files.Fi;
 import arc.struct.ObjectMap;
 import arc.util.Log;
-import arc.util.io.PropertiesUtils;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
 
+/**
+ * <p>Stores key value pairs and persists them using a {@link StorageBackend}.</p>
+ * <p>Data storages are thread-safe. Reads never lock, writes only lock the key they change,
+ * and saving works on a snapshot, so it never blocks writes.</p>
+ */
 public class DataStorage {
-    private final ObjectMap<String, String> storage;
-    private final Fi storageFile;
+    static final int lockStripes = 16;
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "TSRCore-DataStorage-Flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final List<DataStorage> writeBehindStorages = new CopyOnWriteArrayList<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(DataStorage::flushAll, "TSRCore-DataStorage-Shutdown"));
+    }
+
+    private final ConcurrentHashMap<String, String> storage;
+    private final StorageBackend backend;
+    private final Object[] keyLocks = new Object[lockStripes];
+    private final Object writeLock = new Object();
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+    private volatile boolean writeBehind;
+    private int flushThreshold;
+    private ScheduledFuture<?> flushTask;
+    private final LinkedHashMap<String, Boolean> recentKeys = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> pinnedKeys = ConcurrentHashMap.newKeySet();
+    private volatile int cacheLimit;
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private final List<BiConsumer<String, String>> listeners = new CopyOnWriteArrayList<>();
+    private final Metrics.Histogram storeTime;
+    private final Metrics.Counter storedBytes;
+    private final Metrics.Counter errors;
 
     /**
      * <p>Create a new data storage object.</p>
@@ -19,18 +64,23 @@ public class DataStorage {
      * @param path The path of the settings file
      */
     public DataStorage(String path) {
-        storage = new ObjectMap<>();
-        storageFile = new Fi(path);
-        if (!storageFile.exists()) {
-            File file = new File(path);
-            try {
-                boolean created = file.createNewFile();
-                if (created)
-                    Log.info("Created DataStorage file: " + path);
-            } catch(IOException err) {
-                Log.err("Error creating data storage file " + storageFile.name(), err);
-            }
-        }
+        this(new PropertiesBackend(path));
+    }
+
+    /**
+     * <p>Create a new data storage object persisted by a custom backend, like a {@link JournalBackend}.</p>
+     * <p>The data is loaded automatically.</p>
+     * @param backend The backend that stores the data
+     */
+    public DataStorage(StorageBackend backend) {
+        storage = new ConcurrentHashMap<>();
+        this.backend = backend;
+        for (int i = 0; i < lockStripes; i++) keyLocks[i] = new Object();
+        String name = backend.name();
+        storeTime = Metrics.global.histogram("tsrcore_storage_store_seconds", "Time spent writing data storages to disk", "storage", name);
+        storedBytes = Metrics.global.counter("tsrcore_storage_stored_bytes_total", "Bytes rewritten by data storage stores", "storage", name);
+        errors = Metrics.global.counter("tsrcore_storage_errors_total", "Failed data storage reads and writes", "storage", name);
+        Metrics.global.gauge("tsrcore_storage_pending_changes", "Changes of data storages that aren't stored yet", dirtyCount::get, "storage", name);
         load();
     }
 
@@ -41,14 +91,49 @@ public class DataStorage {
      */
     public void set(String key, String value) {
         if (value == null) {
-            storage.put(key, "");
+            synchronized (lockFor(key)) {
+                storage.put(key, "");
+                changed(key, "");
+                notifyListeners(key, "");
+            }
             return;
         }
-        storage.put(key, value);
-        try {
-            PropertiesUtils.store(storage, storageFile.writer(false), "");
-        } catch (IOException err) {
-            Log.err("Error saving data storage " + storageFile.name(), err);
+        synchronized (lockFor(key)) {
+            // Writing to the backend while the key is locked keeps the order of changes to the same key
+            storage.put(key, value);
+            changed(key, value);
+            notifyListeners(key, value);
+            boolean persisted = false;
+            try {
+                persisted = backend.write(key, value);
+            } catch (IOException err) {
+                errors.increment();
+                Log.err("Error writing to data storage " + backend.name(), err);
+            }
+            if (persisted) {
+                used(key);
+                return;
+            }
+        }
+        int dirty = dirtyCount.incrementAndGet();
+        if (!writeBehind) {
+            flush();
+        } else if (dirty == flushThreshold) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    /**
+     * <p>Change a value based on its current value, without other threads changing it in between.</p>
+     * <p>Nothing is written if the new value is the same.</p>
+     * @param key The name of the value
+     * @param update Gets the current value, or null if it isn't set, and returns the new value
+     */
+    public void update(String key, UnaryOperator<String> update) {
+        synchronized (lockFor(key)) {
+            String current = getString(key);
+            String value = update.apply(current);
+            if (!Objects.equals(current, value)) set(key, value);
         }
     }
 
@@ -79,21 +164,314 @@ public class DataStorage {
         set(key, String.valueOf(value));
     }
 
+    /**
+     * <p>Enable write-behind persistence for this storage.</p>
+     * <p>Instead of rewriting the file on every {@link #set(String, String)}, changes are only marked as dirty
+     * and written by a background thread, either every interval or once enough changes have piled up.</p>
+     * <p>Pending changes are written on {@link #flush()}, {@link #flushAll()} and on shutdown.</p>
+     * @param interval The time in seconds between background flushes
+     * @param threshold The amount of changes after which a flush is started early
+     * @return This data storage
+     */
+    public DataStorage writeBehind(float interval, int threshold) {
+        synchronized (writeLock) {
+            if (flushTask != null) flushTask.cancel(false);
+            long period = Math.max(1, (long) (interval * 1000));
+            flushTask = flusher.scheduleAtFixedRate(this::flush, period, period, TimeUnit.MILLISECONDS);
+            flushThreshold = Math.max(1, threshold);
+            writeBehind = true;
+        }
+        if (!writeBehindStorages.contains(this)) writeBehindStorages.add(this);
+        return this;
+    }
+
+    /**
+     * <p>Limit the amount of values kept in memory.</p>
+     * <p>Once the limit is reached, the least recently used values are dropped from memory in the background, and read again from
+     * the backend when they are needed. Pinned values are never dropped. This only works with backends that read
+     * values on demand, like the {@link MappedBackend}, since other backends need all data in memory to save it.</p>
+     * @param maxEntries The max amount of values in memory, or 0 for no limit
+     * @return This data storage
+     */
+    public DataStorage cacheLimit(int maxEntries) {
+        if (maxEntries > 0 && !backend.readsOnDemand()) {
+            Log.warn("Data storage " + backend.name() + " can't limit its cache, since its backend doesn't read values on demand");
+            return this;
+        }
+        cacheLimit = maxEntries;
+        return this;
+    }
+
+    /**
+     * Keep a value in memory even if the cache limit is reached, like for players that are online
+     * @param key The name of the value
+     */
+    public void pin(String key) {
+        pinnedKeys.add(key);
+    }
+
+    /**
+     * Allow a pinned value to be dropped from memory again
+     * @param key The name of the value
+     */
+    public void unpin(String key) {
+        pinnedKeys.remove(key);
+    }
+
+    /**
+     * Mark a value as recently used, and drop the least recently used values on the flusher thread if the cache limit is reached.
+     * Can be called while a key is locked, since it never locks other keys itself
+     */
+    private void used(String key) {
+        int limit = cacheLimit;
+        if (limit <= 0) return;
+        synchronized (recentKeys) {
+            recentKeys.put(key, Boolean.TRUE);
+            if (recentKeys.size() <= limit) return;
+        }
+        if (evictionScheduled.compareAndSet(false, true)) flusher.execute(this::evict);
+    }
+
+    /**
+     * Drop the least recently used values until the cache limit is kept
+     */
+    private void evict() {
+        evictionScheduled.set(false);
+        List<String> evicted = new ArrayList<>();
+        synchronized (recentKeys) {
+            int excess = recentKeys.size() - cacheLimit;
+            Iterator<String> keys = recentKeys.keySet().iterator();
+            while (excess > 0 && keys.hasNext()) {
+                String oldest = keys.next();
+                if (pinnedKeys.contains(oldest)) continue;
+                keys.remove();
+                excess--;
+                evicted.add(oldest);
+            }
+        }
+        for (String oldest : evicted) {
+            // Locked, so a value being set is never dropped before the backend has it
+            synchronized (lockFor(oldest)) {
+                storage.remove(oldest);
+                evicted(oldest);
+            }
+        }
+    }
+
+    /**
+     * <p>Write all pending changes to the file.</p>
+     * <p>With the default backend, the data is written to a temporary file first, which then replaces the old file,
+     * so the file is never left half written.</p>
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            if (dirtyCount.get() == 0) return;
+            long start = System.nanoTime();
+            try {
+                backend.beginStore();
+            } catch (IOException err) {
+                errors.increment();
+                Log.err("Error saving data storage " + backend.name(), err);
+                return;
+            }
+            // Changes made while the snapshot is taken mark the storage dirty again, so they are saved by the next flush
+            dirtyCount.set(0);
+            try {
+                backend.store(snapshot());
+                storedBytes.add(backend.storedBytes());
+            } catch (IOException err) {
+                dirtyCount.incrementAndGet();
+                errors.increment();
+                Log.err("Error saving data storage " + backend.name(), err);
+            }
+            storeTime.since(start);
+        }
+    }
+
+    /**
+     * Write the pending changes of all write-behind data storages. This is done automatically on shutdown
+     */
+    public static void flushAll() {
+        for (DataStorage storage : writeBehindStorages) {
+            storage.flush();
+        }
+    }
+
     /**
      * <p>Reload the data from the file.</p>
      * <p>This is only required if the file was changed manually.</p>
      */
     public void load() {
-        PropertiesUtils.load(storage, storageFile.reader());
+        ObjectMap<String, String> data = new ObjectMap<>();
+        try {
+            backend.load(data);
+        } catch (IOException err) {
+            errors.increment();
+            Log.err("Error loading data storage " + backend.name(), err);
+        }
+        for (ObjectMap.Entry<String, String> entry : data) {
+            storage.put(entry.key, entry.value);
+        }
+        if (backend.needsStore()) {
+            // Store a migrated layout right away, so the migration isn't lost or run again on the next start
+            dirtyCount.incrementAndGet();
+            flush();
+        }
     }
 
+    /**
+     * <p>Read the data again if it was changed outside of this storage, and find the values that differ.</p>
+     * <p>This doesn't change the storage and can be called from any thread. Use {@link #applyChanges(List)} to apply the result.</p>
+     * @return The changed values. Empty if the data wasn't changed
+     */
+    public List<Change> readChanges() {
+        List<Change> changes = new ArrayList<>();
+        if (!backend.modified()) return changes;
+
+        ObjectMap<String, String> data = new ObjectMap<>();
+        try {
+            backend.load(data);
+        } catch (IOException err) {
+            errors.increment();
+            Log.err("Error loading data storage " + backend.name(), err);
+            return changes;
+        }
+        for (ObjectMap.Entry<String, String> entry : data) {
+            String current = storage.get(entry.key);
+            if (!entry.value.equals(current)) changes.add(new Change(entry.key, current, entry.value));
+        }
+        return changes;
+    }
+
+    /**
+     * <p>Apply the changes found by {@link #readChanges()}.</p>
+     * <p>A value that was set again since the changes were read is not overwritten.</p>
+     * @param changes The changes to apply
+     */
+    public void applyChanges(List<Change> changes) {
+        for (Change change : changes) {
+            synchronized (lockFor(change.key)) {
+                boolean applied = change.previous == null
+                        ? storage.putIfAbsent(change.key, change.value) == null
+                        : storage.replace(change.key, change.previous, change.value);
+                if (applied) {
+                    changed(change.key, change.value);
+                    notifyListeners(change.key, change.value);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Get a copy of all the data in the storage, without blocking other threads.</p>
+     * <p>Every change made before this was called is included. Changes made at the same time may be included.</p>
+     * <p>With a backend that reads values on demand, only the values that were used so far are included.</p>
+     * @return A copy of the data
+     */
+    public ObjectMap<String, String> snapshot() {
+        ObjectMap<String, String> snapshot = new ObjectMap<>(storage.size());
+        for (Map.Entry<String, String> entry : storage.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue());
+        }
+        return snapshot;
+    }
+
+    /**
+     * <p>Get a copy of all the data, including values that weren't read yet if the backend reads them on demand.</p>
+     * <p>Depending on the backend, this can be slow.</p>
+     * @return A copy of the data
+     */
+    public ObjectMap<String, String> all() {
+        if (!backend.readsOnDemand()) return snapshot();
+        ObjectMap<String, String> data = new ObjectMap<>();
+        try {
+            backend.readAll(data);
+        } catch (IOException err) {
+            errors.increment();
+            Log.err("Error reading data storage " + backend.name(), err);
+        }
+        data.putAll(snapshot());
+        return data;
+    }
+
+    /**
+     * Get the lock that guards changes to a key. Subclasses can hold it to make a read and a following set atomic
+     * @param key The name of the value
+     * @return The lock of the key
+     */
+    protected Object lockFor(String key) {
+        return keyLocks[stripeOf(key)];
+    }
+
+    /**
+     * Get a key lock by its index, for example to lock all keys of a stripe at once
+     * @param stripe The index of the lock, see {@link #stripeOf(String)}
+     * @return The lock
+     */
+    protected Object lockAt(int stripe) {
+        return keyLocks[stripe];
+    }
+
+    /**
+     * Get the index of the lock that guards a key. Locks of multiple keys should always be taken in the order of their index
+     * @param key The name of the value
+     * @return The index of the lock
+     */
+    protected int stripeOf(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (lockStripes - 1);
+    }
+
+    /**
+     * Called whenever a value is set, while the key is locked. Subclasses can use this to keep derived data up to date
+     * @param key The name of the value
+     * @param value The new value
+     */
+    protected void changed(String key, String value) {}
+
+    /**
+     * <p>Listen for changed values, like to sync them somewhere else.</p>
+     * <p>The listener is called on the thread that changed the value, while the key is locked. Loading the data doesn't call it.</p>
+     * @param listener Called with the name and the new value of every changed value
+     */
+    public void listen(BiConsumer<String, String> listener) {
+        listeners.add(listener);
+    }
+
+    private void notifyListeners(String key, String value) {
+        for (BiConsumer<String, String> listener : listeners) listener.accept(key, value);
+    }
+
+    /**
+     * Called when a value is dropped from memory because of the cache limit, while the key is locked.
+     * Subclasses should drop derived data of the key as well
+     * @param key The name of the value
+     */
+    protected void evicted(String key) {}
+
     /**
      * <p>Get a string value from the storage</p>
      * @param key The name of the value
      * @return The value of the key or null if the key wasn't present in the file.
      */
     public String getString(String key) {
-        return storage.get(key);
+        String value = storage.get(key);
+        if (value != null) {
+            used(key);
+        } else if (backend.readsOnDemand()) {
+            try {
+                value = backend.read(key);
+            } catch (IOException err) {
+                errors.increment();
+                Log.err("Error reading from data storage " + backend.name(), err);
+            }
+            if (value != null) {
+                String current = storage.putIfAbsent(key, value);
+                if (current != null) value = current;
+                used(key);
+            }
+        }
+        return value;
     }
 
     /**
@@ -103,7 +481,7 @@ public class DataStorage {
      * @return The value of the key or the not found value if the key wasn't present in the file.
      */
     public String getString(String key, String notFound) {
-        String result = storage.get(key);
+        String result = getString(key);
         if (result == null) {
             set(key, notFound);
             return notFound;
@@ -119,7 +497,7 @@ public class DataStorage {
     public Integer getInt(String key) {
         String val = getString(key);
         if (val == null) return null;
-        return Integer.parseInt(getString(key));
+        return Integer.parseInt(val);
     }
 
     /**
@@ -129,7 +507,12 @@ public class DataStorage {
      * @return The value of the key or the not found value if the key wasn't present in the file.
      */
     public int getInt(String key, int notFound) {
-        return Integer.parseInt(getString(key, String.valueOf(notFound)));
+        String val = getString(key);
+        if (val == null) {
+            set(key, notFound);
+            return notFound;
+        }
+        return Integer.parseInt(val);
     }
 
     /**
@@ -140,7 +523,7 @@ public class DataStorage {
     public Boolean getBool(String key) {
         String val = getString(key);
         if (val == null) return null;
-        return Boolean.parseBoolean(getString(key));
+        return Boolean.parseBoolean(val);
     }
 
     /**
@@ -150,7 +533,12 @@ public class DataStorage {
      * @return The value of the key or the not found value if the key wasn't present in the file.
      */
     public boolean getBool(String key, boolean notFound) {
-        return Boolean.parseBoolean(getString(key, String.valueOf(notFound)));
+        String val = getString(key);
+        if (val == null) {
+            set(key, notFound);
+            return notFound;
+        }
+        return Boolean.parseBoolean(val);
     }
 
     /**
@@ -161,7 +549,7 @@ public class DataStorage {
     public Double getDouble(String key) {
         String val = getString(key);
         if (val == null) return null;
-        return Double.parseDouble(getString(key));
+        return Double.parseDouble(val);
     }
 
     /**
@@ -171,6 +559,24 @@ public class DataStorage {
      * @return The value of the key or the not found value if the key wasn't present in the file.
      */
     public double getDouble(String key, double notFound) {
-        return Double.parseDouble(getString(key, String.valueOf(notFound)));
+        String val = getString(key);
+        if (val == null) {
+            set(key, notFound);
+            return notFound;
+        }
+        return Double.parseDouble(val);
+    }
+
+    /** A value that was changed outside of a data storage */
+    public static class Change {
+        public final String key;
+        public final String previous;
+        public final String value;
+
+        public Change(String key, String previous, String value) {
+            this.key = key;
+            this.previous = previous;
+            this.value = value;
+        }
     }
 }
@@ -1,26 +1,106 @@
 package tsrcore;
 
+import arc.Core;
 import arc.util.Log;
+import arc.util.Timer;
 import mindustry.gen.Groups;
 import mindustry.gen.Player;
 
+import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Database {
+    private static final int lookupBatchSize = 500;
+
     public String connectString;
 
-    private Connection connection;
+    private final DatabaseBackend backend;
+
+    private ConnectionPool pool;
+    private ExecutorService executor;
+    private ScheduledExecutorService saveExecutor;
+    private float pollInterval = 5;
+    private float timeout = 5;
+    private CircuitBreaker breaker = new CircuitBreaker("DB", 3, 30);
+    private Spool spool;
+    // Spooled changes by uuid and field name, or null if the spool wasn't read yet. Only used on the save thread
+    private Map<String, Map<String, Spool.Entry>> spooled;
+    // What is known about players that aren't tracked anymore, but whose changes weren't written yet
+    private final Map<String, Known> pending = new ConcurrentHashMap<>();
+    // What this server last read from or wrote to the db for each online player. Only used on the save thread
+    private final Map<String, Known> known = new HashMap<>();
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    // Registered fields in the order of the columns in selectQuery
+    private final List<StorageEntry> fields = new CopyOnWriteArrayList<>();
+    // The save statements of each set of changed fields, by the indexes of the fields
+    private final ConcurrentHashMap<BitSet, SaveQueries> saveQueries = new ConcurrentHashMap<>();
+    private volatile String columnList = "uuid";
+    private volatile String selectQuery = "SELECT version, uuid FROM players WHERE uuid = ?";
+    private volatile String lockQuery = "SELECT version, uuid FROM players WHERE uuid = ? FOR UPDATE";
+    private final Object schemaLock = new Object();
+    // Lower case names of the columns in the database, or null if they weren't read yet
+    private Set<String> columns;
+    private final List<String> indexes = new CopyOnWriteArrayList<>();
+    private final Set<String> createdIndexes = new HashSet<>();
+    private volatile boolean schemaReady;
+    private final ConcurrentHashMap<String, Set<StorageEntry>> dirty = new ConcurrentHashMap<>();
+    // Set while values from the db are put into the storages, so they aren't written back
+    private final ThreadLocal<Boolean> applying = ThreadLocal.withInitial(() -> false);
     private final HashMap<StorageEntry, DataStorage> storages = new HashMap<>();
+    private volatile ExpiringCache<Map<String, String>> cache = new ExpiringCache<>(1000, 60);
+    private final AtomicInteger pendingSaves = new AtomicInteger();
+    private final Metrics.Histogram joinTime = Metrics.global.histogram("tsrcore_db_join_seconds", "Time until the data of a joining player is loaded");
+    private final Metrics.Counter joinFallbacks = Metrics.global.counter("tsrcore_db_join_fallbacks_total", "Joining players that got their local data, since the database couldn't be read");
+    private final Operation connectOperation = new Operation("connect");
+    private final Operation schemaOperation = new Operation("schema");
+    private final Operation topOperation = new Operation("top");
+    private final Operation rankOperation = new Operation("rank");
+    private final Operation lookupOperation = new Operation("lookup");
+    private final Operation loadOperation = new Operation("load");
+    private final Operation saveOperation = new Operation("save");
+    private final Operation pollOperation = new Operation("poll");
 
     /**
-     * Create a new database from
+     * Create a new MySQL database from
      * @param connectString The JDBC connect string
      */
     public Database(String connectString) {
-        this.connectString = connectString;
+        this(connectString, new MySqlBackend());
+    }
+
+    /**
+     * Create a new database using a specific database engine, like {@link H2Backend}
+     * @param connectString The JDBC connect string, which may be empty if the backend doesn't need one
+     * @param backend The database engine
+     */
+    public Database(String connectString, DatabaseBackend backend) {
+        this.backend = backend;
+        this.connectString = backend.connectString(connectString);
+        Metrics.global.gauge("tsrcore_db_pending_saves", "Saves waiting to be written to the database", pendingSaves::get);
+        Metrics.global.gauge("tsrcore_db_dirty_players", "Players with changes that aren't saved to the database yet", dirty::size);
+        Metrics.global.gauge("tsrcore_db_unwritten_players", "Offline players whose changes couldn't be written to the database yet", pending::size);
+        Metrics.global.gauge("tsrcore_db_unavailable", "1 while the circuit breaker of the database is open", () -> breaker.isOpen() ? 1 : 0);
         load();
     }
 
@@ -29,60 +109,209 @@ public class Database {
      */
     public void load() {
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
+            Class.forName(backend.driverClass());
         } catch (ClassNotFoundException e) {
             Log.err("Failed to load database classes: " + e);
         }
     }
 
     /**
-     * Connect to the database. This is done automatically
+     * Connect to the database with a pool of 4 connections. This is done automatically
      */
     public void connect() {
+        connect(4, 300);
+    }
+
+    /**
+     * <p>Connect to the database. This is done automatically.</p>
+     * <p>Connections are opened when needed, checked before use and reopened if the database was restarted.</p>
+     * @param poolSize The max amount of connections used at once
+     * @param idleTimeout The time in seconds after which unused connections are closed
+     */
+    public void connect(int poolSize, float idleTimeout) {
+        disconnect();
+        pool = new ConnectionPool(connectString, poolSize, idleTimeout).timeout(timeout);
+        executor = Executors.newFixedThreadPool(pool.size(), runnable -> {
+            Thread thread = new Thread(runnable, "TSRCore-Database");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saveExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TSRCore-Database-Save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (pollInterval > 0) {
+            long interval = (long) (pollInterval * 1000);
+            saveExecutor.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+        }
         try {
-            connection = DriverManager.getConnection(connectString);
-            DatabaseMetaData metaData = connection.getMetaData();
-            ResultSet res = metaData.getTables(null, null, "players", null);
-            if (!res.next())
-                update("CREATE TABLE players (uuid VARCHAR(255) PRIMARY KEY)");
+            run(connectOperation, connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("CREATE TABLE IF NOT EXISTS players (uuid VARCHAR(255) PRIMARY KEY)");
+                }
+                loadColumns(connection);
+                return null;
+            });
         } catch (SQLException e) {
             Log.err("Failed to connect to DB: " + e);
         }
     }
 
-    private void update(String query) {
-        try {
-            Statement statement = connection.createStatement();
-            statement.executeUpdate(query);
-            statement.close();
-        } catch (SQLException e) {
-            Log.err("SQL Update failed: " + e);
+    /**
+     * <p>Add the columns and indexes of all registered fields that are missing in the database.</p>
+     * <p>This is done automatically before the database is used, and after the server loaded,
+     * so all fields registered during startup are added at once. After that, changes spooled while the database
+     * was unavailable are written.</p>
+     * @return A future completed once the columns are added, even if they couldn't be added
+     */
+    public CompletableFuture<Void> applySchema() {
+        if (pool == null) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                run(schemaOperation, connection -> {
+                    ensureSchema(connection);
+                    return null;
+                });
+            } catch (SQLException e) {
+                logError("SQL Update failed", e);
+            }
+            saveExecutor.execute(this::replay);
+        }, executor);
+    }
+
+    /**
+     * <p>Set the latency budget and circuit breaker of the database.</p>
+     * <p>Queries that take longer than the budget are cancelled, and joining players that can't be loaded within it use
+     * their local data. After some failed queries in a row, the database isn't used for a while: saves are spooled
+     * and joining players use their local data right away.</p>
+     * @param timeout The budget in seconds
+     * @param failureThreshold The amount of failed queries in a row after which the database isn't used
+     * @param retryTime The time in seconds before the database is tried again
+     * @return This database
+     */
+    public Database breaker(float timeout, int failureThreshold, float retryTime) {
+        this.timeout = timeout;
+        breaker = new CircuitBreaker("DB", failureThreshold, retryTime);
+        if (pool != null) pool.timeout(timeout);
+        return this;
+    }
+
+    /**
+     * <p>Keep changes that couldn't be written in a local append-only file.</p>
+     * <p>They are written in batches once the database is available again, even after a restart,
+     * and merged like normal saves.</p>
+     * @param path The path of the spool file
+     * @return This database
+     */
+    public Database spool(String path) {
+        spool = new Spool(path);
+        return this;
+    }
+
+    /**
+     * Run queries on a pooled connection, unless the circuit breaker is open
+     * @param operation The operation, which records the metrics
+     */
+    private <T> T run(Operation operation, SqlTask<T> task) throws SQLException {
+        if (!breaker.allow()) {
+            operation.rejected.increment();
+            throw new SQLException("Database unavailable");
         }
+        long start = System.nanoTime();
+        T result;
+        try (Connection connection = pool.borrow()) {
+            result = task.run(connection);
+        } catch (SQLException | RuntimeException e) {
+            breaker.failure();
+            operation.errors.increment();
+            throw e;
+        } finally {
+            operation.time.since(start);
+        }
+        if (breaker.success() && !saveExecutor.isShutdown()) saveExecutor.execute(this::replay);
+        return result;
     }
 
-    private ResultSet query(String query) {
-        try {
-            Statement statement = connection.createStatement();
-            return statement.executeQuery(query);
-        } catch (SQLException e) {
-            Log.err("SQL Query failed: " + e);
+    /**
+     * Log a failed query, unless the circuit breaker already reported that the database is unavailable
+     */
+    private void logError(String message, SQLException e) {
+        if (!breaker.isOpen()) Log.err(message + ": " + e);
+    }
+
+    /**
+     * Read the names of the existing columns, without the metadata calls that can hang on some servers
+     */
+    private void loadColumns(Connection connection) throws SQLException {
+        Set<String> names = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet res = statement.executeQuery("SELECT * FROM players WHERE 1 = 0")) {
+            ResultSetMetaData metaData = res.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++)
+                names.add(metaData.getColumnName(i).toLowerCase(Locale.ROOT));
+        }
+        synchronized (schemaLock) {
+            columns = names;
+        }
+    }
+
+    private void ensureSchema(Connection connection) throws SQLException {
+        if (schemaReady) return;
+        synchronized (schemaLock) {
+            if (schemaReady) return;
+            if (columns == null) loadColumns(connection);
+
+            List<StorageEntry> missing = new ArrayList<>();
+            StringBuilder alter = new StringBuilder("ALTER TABLE players");
+            boolean addVersion = !columns.contains("version");
+            if (addVersion) alter.append(" ADD COLUMN (version BIGINT DEFAULT 0 NOT NULL");
+            for (StorageEntry field : fields) {
+                if (columns.contains(field.name.toLowerCase(Locale.ROOT))) continue;
+                alter.append(missing.isEmpty() && !addVersion ? " ADD COLUMN (" : ", ").append(field.name).append(" ").append(field.columnType);
+                missing.add(field);
+            }
+            if (!missing.isEmpty() || addVersion) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(alter.append(")").toString());
+                }
+                for (StorageEntry field : missing) columns.add(field.name.toLowerCase(Locale.ROOT));
+                columns.add("version");
+            }
+
+            for (String name : indexes) {
+                if (createdIndexes.contains(name)) continue;
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(backend.createIndexQuery(name));
+                } catch (SQLException e) {
+                    if (!backend.indexExists(e)) throw e;
+                }
+                createdIndexes.add(name);
+            }
+            schemaReady = true;
         }
-        return null;
     }
 
-    private boolean hasColumn(String name) {
-        // TODO gets stuck only in prod for some reason
+    /**
+     * <p>Write all pending saves and close all connections to the database.</p>
+     * <p>All changes that weren't saved yet are saved first, or spooled if the database is unavailable.</p>
+     */
+    public void disconnect() {
+        if (pool == null) return;
+        List<String> changed = new ArrayList<>(dirty.keySet());
+        // Data that isn't loaded yet must not overwrite the database
+        changed.removeAll(loading);
+        if (!changed.isEmpty()) save(changed);
+        executor.shutdown();
+        saveExecutor.shutdown();
         try {
-            Log.info("Checking for column "+name);
-            DatabaseMetaData metaData = connection.getMetaData();
-            Log.info("Checking...");
-            ResultSet res = metaData.getColumns(null, null, "players", name);
-            Log.info("a");
-            return res.next();
-        } catch (SQLException e) {
-            Log.err("SQL Exception 1: " + e);
-            return false;
+            if (!saveExecutor.awaitTermination(10, TimeUnit.SECONDS))
+                Log.err("Timed out writing pending saves to DB");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        pool.close();
+        pool = null;
     }
 
     /**
@@ -92,10 +321,8 @@ public class Database {
      * @param defaultValue The default value if a player has no data stored in the db
      */
     public void addPlayerFieldString(String name, DataStorage storage, String defaultValue) {
-        if (connection == null) return;
-        storages.put(new StorageEntry(name, "string", defaultValue), storage);
-        //if (hasColumn(name)) return;
-        update("ALTER TABLE players ADD COLUMN "+name+" TEXT");
+        if (pool == null) return;
+        addField(new StorageEntry(name, FieldType.STRING, defaultValue), storage);
     }
 
     /**
@@ -105,10 +332,8 @@ public class Database {
      * @param defaultValue The default value if a player has no data stored in the db
      */
     public void addPlayerFieldInt(String name, DataStorage storage, int defaultValue) {
-        if (connection == null) return;
-        storages.put(new StorageEntry(name, "int", String.valueOf(defaultValue)), storage);
-        //if (hasColumn(name)) return;
-        update("ALTER TABLE players ADD COLUMN "+name+" INT");
+        if (pool == null) return;
+        addField(new StorageEntry(name, FieldType.INT, String.valueOf(defaultValue)), storage);
     }
 
     /**
@@ -118,10 +343,8 @@ public class Database {
      * @param defaultValue The default value if a player has no data stored in the db
      */
     public void addPlayerFieldBool(String name, DataStorage storage, boolean defaultValue) {
-        if (connection == null) return;
-        storages.put(new StorageEntry(name, "bool", String.valueOf(defaultValue)), storage);
-        //if (hasColumn(name)) return;
-        update("ALTER TABLE players ADD COLUMN "+name+" TINYINT(1)");
+        if (pool == null) return;
+        addField(new StorageEntry(name, FieldType.BOOL, String.valueOf(defaultValue)), storage);
     }
 
     /**
@@ -131,128 +354,917 @@ public class Database {
      * @param defaultValue The default value if a player has no data stored in the db
      */
     public void addPlayerFieldDouble(String name, DataStorage storage, double defaultValue) {
-        if (connection == null) return;
-        storages.put(new StorageEntry(name, "double", String.valueOf(defaultValue)), storage);
-        //if (hasColumn(name)) return;
-        update("ALTER TABLE players ADD COLUMN "+name+" DOUBLE");
+        if (pool == null) return;
+        addField(new StorageEntry(name, FieldType.DOUBLE, String.valueOf(defaultValue)), storage);
+    }
+
+    /**
+     * Create an index on a player data field, so the players can be sorted by it efficiently, like for {@link #top(String, int)}
+     * @param name The name of the field
+     */
+    public void addIndex(String name) {
+        if (pool == null) return;
+        indexes.add(name);
+        schemaReady = false;
+    }
+
+    /**
+     * Get the players with the highest value of an int field, including offline players
+     * @param name The name of the field
+     * @param count The max amount of players
+     * @return The uuids and values of the players, highest first
+     */
+    public List<Leaderboard.Entry> top(String name, int count) {
+        if (pool == null) return new ArrayList<>();
+        String query = "SELECT uuid, " + name + " FROM players ORDER BY " + name + " DESC LIMIT ?";
+        try {
+            return run(topOperation, connection -> {
+                ensureSchema(connection);
+                List<Leaderboard.Entry> result = new ArrayList<>();
+                try (PreparedStatement statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    statement.setInt(1, count);
+                    // Stream the rows instead of buffering the whole result
+                    statement.setFetchSize(backend.streamingFetchSize());
+                    try (ResultSet res = statement.executeQuery()) {
+                        while (res.next())
+                            result.add(new Leaderboard.Entry(res.getString(1), res.getInt(2)));
+                    }
+                }
+                return result;
+            });
+        } catch (SQLException e) {
+            logError("SQL Exception 4", e);
+            return new ArrayList<>();
+        }
     }
 
     /**
-     * Sync the data of a player to the storages. Done automatically on join
+     * Get the position of a player when sorting all players by an int field, including offline players
+     * @param name The name of the field
+     * @param uuid The uuid of the player
+     * @return The rank, starting at 1 for the highest value, or -1 if the player isn't in the database
+     */
+    public int rank(String name, String uuid) {
+        if (pool == null) return -1;
+        String query = "SELECT (SELECT COUNT(*) FROM players p WHERE p." + name + " > q." + name + ") + 1 FROM players q WHERE q.uuid = ?";
+        try {
+            return run(rankOperation, connection -> {
+                ensureSchema(connection);
+                try (PreparedStatement statement = connection.prepareStatement(query)) {
+                    statement.setString(1, uuid);
+                    try (ResultSet res = statement.executeQuery()) {
+                        return res.next() ? res.getInt(1) : -1;
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            logError("SQL Exception 5", e);
+            return -1;
+        }
+    }
+
+    /**
+     * <p>Load the data of a player into the storages without blocking the main thread. Done automatically on join.</p>
+     * <p>The data is read on a background thread and put into the storages on the main thread.
+     * If the player has no data yet, the default values are used and written with the next save.</p>
+     * <p>If the database is unavailable or doesn't answer within the latency budget, the local data of the player
+     * is used instead, and merged into the database once it is available again.</p>
+     * @param uuid The uuid of the new player
+     * @return A future completed on the main thread once the data is in the storages, even if it couldn't be loaded
+     */
+    public CompletableFuture<Void> loadPlayer(String uuid) {
+        CompletableFuture<Void> loaded = new CompletableFuture<>();
+        if (pool == null) {
+            loaded.complete(null);
+            return loaded;
+        }
+        long start = System.nanoTime();
+        loaded.thenRun(() -> joinTime.since(start));
+        boolean[] done = new boolean[1];
+        Runnable fallback = () -> {
+            if (done[0]) return;
+            done[0] = true;
+            joinFallbacks.increment();
+            useLocal(uuid);
+            loading.remove(uuid);
+            loaded.complete(null);
+        };
+        // Spooled changes would be overwritten by the data in the database
+        if (breaker.isOpen() || pending.containsKey(uuid)) {
+            fallback.run();
+            return loaded;
+        }
+
+        loading.add(uuid);
+        Timer.schedule(fallback, timeout);
+        executor.execute(() -> {
+            PlayerRow row = fetch(uuid);
+            Core.app.post(() -> {
+                if (row == null) {
+                    fallback.run();
+                    return;
+                }
+                // Too late, the local data is already used
+                if (done[0]) return;
+                done[0] = true;
+                apply(uuid, row);
+                loading.remove(uuid);
+                loaded.complete(null);
+            });
+        });
+        return loaded;
+    }
+
+    /**
+     * Sync the data of a player to the storages, blocking until it is loaded. Use {@link #loadPlayer(String)} on the main thread
      * @param uuid The uuid of the new player
      */
     public void playerJoin(String uuid) {
-        ResultSet res = query("SELECT * FROM players WHERE uuid = '" + uuid + "'");
-        if (res == null) return;
+        if (pool == null) return;
+        PlayerRow row = pending.containsKey(uuid) ? null : fetch(uuid);
+        if (row != null) apply(uuid, row);
+        else useLocal(uuid);
+    }
+
+    /**
+     * <p>Look up the data of a player that may be offline, without blocking the main thread.</p>
+     * <p>Results are cached for a while, so repeated lookups don't query the database. For online players,
+     * the data storages are more up to date.</p>
+     * @param uuid The uuid of the player
+     * @return A future completed on the main thread with the values by field name, or null if the player isn't in the database
+     */
+    public CompletableFuture<Map<String, String>> lookup(String uuid) {
+        return lookup(Collections.singletonList(uuid)).thenApply(found -> found.get(uuid));
+    }
+
+    /**
+     * <p>Look up the data of many players that may be offline at once, without blocking the main thread.</p>
+     * <p>Players that aren't cached are read with as few queries as possible.</p>
+     * @param uuids The uuids of the players
+     * @return A future completed on the main thread with the values by field name by uuid, only containing players in the database
+     */
+    public CompletableFuture<Map<String, Map<String, String>>> lookup(Collection<String> uuids) {
+        Map<String, Map<String, String>> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String uuid : uuids) {
+            Map<String, String> cached = cache.get(uuid);
+            if (cached == null) missing.add(uuid);
+            // Players that aren't in the database are cached as empty
+            else if (!cached.isEmpty()) result.put(uuid, cached);
+        }
+        if (missing.isEmpty() || pool == null) return CompletableFuture.completedFuture(result);
 
+        CompletableFuture<Map<String, Map<String, String>>> found = new CompletableFuture<>();
+        executor.execute(() -> {
+            Map<String, Map<String, String>> rows = fetchAll(missing);
+            Core.app.post(() -> {
+                result.putAll(rows);
+                found.complete(result);
+            });
+        });
+        return found;
+    }
+
+    /**
+     * Set how many players are cached for lookups, and for how long
+     * @param maxEntries The max amount of cached players
+     * @param timeToLive The time in seconds after which a cached player is read again
+     * @return This database
+     */
+    public Database cache(int maxEntries, float timeToLive) {
+        cache = new ExpiringCache<>(maxEntries, timeToLive);
+        return this;
+    }
+
+    private Map<String, Map<String, String>> fetchAll(List<String> uuids) {
+        List<StorageEntry> fields = this.fields;
+        Map<String, Map<String, String>> result;
         try {
-            if (!res.isBeforeFirst()) {
-                StringBuilder names = new StringBuilder("uuid");
-                StringBuilder values = new StringBuilder("'"+uuid+"'");
+            result = run(lookupOperation, connection -> {
+                ensureSchema(connection);
+                Map<String, Map<String, String>> found = new HashMap<>();
+                for (int start = 0; start < uuids.size(); start += lookupBatchSize) {
+                    List<String> chunk = uuids.subList(start, Math.min(start + lookupBatchSize, uuids.size()));
+                    StringBuilder query = new StringBuilder("SELECT uuid");
+                    for (StorageEntry field : fields) query.append(",").append(field.name);
+                    query.append(" FROM players WHERE uuid IN (");
+                    for (int i = 0; i < chunk.size(); i++) query.append(i == 0 ? "?" : ",?");
+                    query.append(")");
 
-                for (Map.Entry<StorageEntry, DataStorage> entry : storages.entrySet()) {
-                    names.append(",").append(entry.getKey().name);
-                    values.append(",").append("?");
+                    try (PreparedStatement statement = connection.prepareStatement(query.toString())) {
+                        for (int i = 0; i < chunk.size(); i++) statement.setString(i + 1, chunk.get(i));
+                        try (ResultSet res = statement.executeQuery()) {
+                            while (res.next()) {
+                                Map<String, String> values = new HashMap<>();
+                                for (int i = 0; i < fields.size(); i++) {
+                                    values.put(fields.get(i).name, fields.get(i).type.get(res, i + 2));
+                                }
+                                found.put(res.getString(1), values);
+                            }
+                        }
+                    }
                 }
+                return found;
+            });
+        } catch (SQLException e) {
+            logError("SQL Exception 6", e);
+            return new HashMap<>();
+        }
+        for (String uuid : uuids) {
+            Map<String, String> values = result.get(uuid);
+            cache.put(uuid, values == null ? Collections.emptyMap() : values);
+        }
+        return result;
+    }
 
-                String query = "INSERT INTO players (" + names + ") VALUES (" + values + ")";
-                PreparedStatement statement = connection.prepareStatement(query);
-                int i = 0;
-                for (Map.Entry<StorageEntry, DataStorage> entry : storages.entrySet()) {
-                    i++;
-                    if (Objects.equals(entry.getKey().type, "string"))
-                        statement.setString(i, entry.getKey().defaultValue);
-                    if (Objects.equals(entry.getKey().type, "int"))
-                        statement.setInt(i, Integer.parseInt(entry.getKey().defaultValue));
-                    if (Objects.equals(entry.getKey().type, "double"))
-                        statement.setDouble(i, Double.parseDouble(entry.getKey().defaultValue));
-                    if (Objects.equals(entry.getKey().type, "bool"))
-                        statement.setBoolean(i, Boolean.parseBoolean(entry.getKey().defaultValue));
-                }
-                statement.executeUpdate();
-                statement.close();
+    /**
+     * Read the data of a player in one round trip. Players that aren't in the database yet get the default values
+     * @return The values of all fields, or null if they couldn't be read
+     */
+    private PlayerRow fetch(String uuid) {
+        List<StorageEntry> fields = this.fields;
+        try {
+            return run(loadOperation, connection -> {
+                ensureSchema(connection);
+                try (PreparedStatement select = connection.prepareStatement(selectQuery)) {
+                    select.setString(1, uuid);
+                    try (ResultSet res = select.executeQuery()) {
+                        Map<StorageEntry, String> result = new HashMap<>();
+                        if (!res.next()) {
+                            for (StorageEntry entry : fields) {
+                                result.put(entry, entry.defaultValue);
+                            }
+                            return new PlayerRow(result, -1);
+                        }
 
-                for (Map.Entry<StorageEntry, DataStorage> entry : storages.entrySet()) {
-                    entry.getValue().set(uuid, entry.getKey().defaultValue);
+                        for (int i = 0; i < fields.size(); i++) {
+                            StorageEntry entry = fields.get(i);
+                            result.put(entry, entry.type.get(res, i + 2));
+                        }
+                        return new PlayerRow(result, res.getLong(1));
+                    }
                 }
+            });
+        } catch (SQLException e) {
+            if (!breaker.isOpen()) {
+                Log.err("SQL Exception 2: " );
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
 
-                return;
+    /**
+     * <p>Use the local data of a player that couldn't be read from the database.
+     * What the player had locally is treated as the last known database state, so later changes are merged correctly.</p>
+     * <p>Fields the player has no local value for get the default value without being marked as changed,
+     * so they never overwrite what other servers wrote.</p>
+     */
+    private void useLocal(String uuid) {
+        Map<StorageEntry, Object> base = new HashMap<>();
+        applying.set(true);
+        try {
+            for (StorageEntry field : fields) {
+                String value = storages.get(field).getString(uuid);
+                if (value != null) base.put(field, parse(field, value));
+                else storages.get(field).set(uuid, field.defaultValue);
             }
+        } finally {
+            applying.set(false);
+        }
+        cache.remove(uuid);
+        saveExecutor.execute(() -> {
+            Known spooled = pending.remove(uuid);
+            known.put(uuid, spooled != null ? spooled : new Known(-1, base));
+        });
+    }
 
-            res.next();
-            for (Map.Entry<StorageEntry, DataStorage> entries : storages.entrySet()) {
-                String type = entries.getKey().type;
-                if (Objects.equals(type, "string")) {
-                    entries.getValue().set(uuid, res.getString(entries.getKey().name));
-                } else if (Objects.equals(type, "int")) {
-                    entries.getValue().set(uuid, res.getInt(entries.getKey().name));
-                } else if (Objects.equals(type, "bool")) {
-                    entries.getValue().set(uuid, res.getBoolean(entries.getKey().name));
-                } else if (Objects.equals(type, "double")) {
-                    entries.getValue().set(uuid, res.getDouble(entries.getKey().name));
-                }
+    private void apply(String uuid, PlayerRow row) {
+        applying.set(true);
+        try {
+            for (Map.Entry<StorageEntry, String> entry : row.values.entrySet()) {
+                storages.get(entry.getKey()).set(uuid, entry.getValue());
             }
+        } finally {
+            applying.set(false);
+        }
+        // The values of the db replace any local changes
+        dirty.remove(uuid);
+        cache.remove(uuid);
+        // New players are inserted by the next save
+        if (row.version < 0) markDirty(uuid);
 
-            res.close();
-        } catch (SQLException e) {
-            Log.err("SQL Exception 2: " );
-            e.printStackTrace();
+        Map<StorageEntry, Object> base = new HashMap<>();
+        for (Map.Entry<StorageEntry, String> entry : row.values.entrySet()) {
+            base.put(entry.getKey(), parse(entry.getKey(), entry.getValue()));
         }
+        saveExecutor.execute(() -> known.put(uuid, new Known(row.version, base)));
     }
 
     /**
-     * Sync the data of all players to the db. This is done automatically every minute
+     * Sync the changed data of all online players to the db in one batch. This is done automatically every minute
      */
     public void save() {
-        Groups.player.each(this::save);
+        if (pool == null) return;
+        List<String> uuids = new ArrayList<>();
+        Groups.player.each(player -> {
+            // Data that isn't loaded yet must not overwrite the database
+            if (!loading.contains(player.uuid())) uuids.add(player.uuid());
+        });
+        save(uuids);
     }
 
     /**
-     * Sync the data of a specific player to the db. This is done automatically when a player leaves.
+     * Sync the changed data of a specific player to the db. This is done automatically when a player leaves.
      * @param player The player to sync the data of
      */
     public void save(Player player) {
+        if (pool == null) return;
+        String uuid = player.uuid();
+        save(Collections.singletonList(uuid));
+        // The player isn't online anymore, so other servers may change their data freely
+        saveExecutor.execute(() -> {
+            Known left = known.remove(uuid);
+            // Changes that couldn't be written are still merged based on what was known
+            if (left != null && dirty.containsKey(uuid)) pending.put(uuid, left);
+        });
+    }
+
+    /**
+     * <p>Sync the changed data of some players to the db.</p>
+     * <p>Only the fields that changed since the last save are written, and players without changes are skipped.
+     * The data is written on a background thread in batches within one transaction, in the order the saves were made.</p>
+     * <p>Rows are only updated if no other server wrote them since this server last read or wrote them.
+     * Otherwise, the changed fields are merged using their {@link ConflictPolicy}.</p>
+     * @param uuids The uuids of the players to sync the data of
+     * @return A future completed once the data is written, even if it couldn't be written
+     */
+    public CompletableFuture<Void> save(Collection<String> uuids) {
+        if (pool == null) return CompletableFuture.completedFuture(null);
+        List<String> players = new ArrayList<>(uuids);
+        pendingSaves.incrementAndGet();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                write(players);
+            } finally {
+                pendingSaves.decrementAndGet();
+            }
+        }, saveExecutor);
+    }
+
+    /**
+     * Set how changes of a field are merged when another server changed the same player at the same time
+     * @param name The name of the field
+     * @param policy The conflict policy
+     * @return This database
+     * @throws IllegalStateException If the policy is {@link ConflictPolicy#ADDITIVE} and the field isn't an int or double field
+     */
+    public Database conflictPolicy(String name, ConflictPolicy policy) {
+        for (StorageEntry field : fields) {
+            if (!field.name.equals(name)) continue;
+            if (policy == ConflictPolicy.ADDITIVE && !field.type.numeric())
+                throw new IllegalStateException("Field " + name + " isn't numeric, so it can't be merged additively");
+            field.policy = policy;
+        }
+        return this;
+    }
+
+    /**
+     * Check for online players that were changed by another server, and update their data. Done automatically
+     * @param interval The time in seconds between checks, or 0 to never check
+     * @return This database
+     */
+    public Database pollInterval(float interval) {
+        pollInterval = interval;
+        return this;
+    }
+
+    /**
+     * Write the changed fields of players. Only called on the save thread
+     * @return Whether the changes were written
+     */
+    private boolean write(List<String> uuids) {
+        spooled();
+        List<Change> changes = new ArrayList<>();
+        for (String uuid : uuids) {
+            Set<StorageEntry> changed = dirty.remove(uuid);
+            if (changed != null) changes.add(new Change(uuid, changed));
+        }
+        if (changes.isEmpty()) {
+            unspool(uuids);
+            return true;
+        }
+
+        Map<String, Known> written = new HashMap<>();
+        List<Runnable> adjustments = new ArrayList<>();
         try {
-            String uuid = player.uuid();
-            StringBuilder update = new StringBuilder();
+            run(saveOperation, connection -> {
+                ensureSchema(connection);
+                connection.setAutoCommit(false);
+                try {
+                    // Players with the same changed fields are updated in one batch
+                    Map<BitSet, List<Change>> batches = new LinkedHashMap<>();
+                    List<Change> inserts = new ArrayList<>();
+                    List<Change> conflicts = new ArrayList<>();
+                    for (Change change : changes) {
+                        if (change.known.version < 0) inserts.add(change);
+                        else batches.computeIfAbsent(change.mask, f -> new ArrayList<>()).add(change);
+                    }
+
+                    for (List<Change> batch : batches.values()) {
+                        List<StorageEntry> changed = batch.get(0).fields;
+                        try (PreparedStatement statement = connection.prepareStatement(batch.get(0).queries().update)) {
+                            for (Change change : batch) {
+                                for (int i = 0; i < changed.size(); i++) changed.get(i).type.bind(statement, i + 1, change.values[i]);
+                                statement.setString(changed.size() + 1, change.uuid);
+                                statement.setLong(changed.size() + 2, change.known.version);
+                                statement.addBatch();
+                            }
+                            int[] counts = statement.executeBatch();
+                            for (int i = 0; i < counts.length; i++) {
+                                Change change = batch.get(i);
+                                // Another server wrote the row. Drivers that don't report counts are trusted
+                                if (counts[i] == 0) conflicts.add(change);
+                                else written.put(change.uuid, change.known.next(change.known.version + 1, change.fields, change.values));
+                            }
+                        }
+                    }
+
+                    for (Change change : inserts) {
+                        try {
+                            insert(connection, change);
+                            written.put(change.uuid, change.known.next(1, change.fields, change.values));
+                        } catch (SQLException e) {
+                            // Another server inserted the player first
+                            if (!isDuplicate(e)) throw e;
+                            conflicts.add(change);
+                        }
+                    }
+
+                    for (Change change : conflicts) {
+                        written.put(change.uuid, merge(connection, change, adjustments));
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            logError("SQL Exception 3", e);
+            // Try again with the next save, and keep the changes in case the server stops before that
+            for (Change change : changes) {
+                for (StorageEntry field : change.fields) markDirty(change.uuid, field);
+                if (!known.containsKey(change.uuid)) pending.put(change.uuid, change.known);
+            }
+            spool(changes);
+            return false;
+        }
 
-            for (Map.Entry<StorageEntry, DataStorage> entry : storages.entrySet()) {
-                if (!update.toString().isEmpty())
-                    update.append(",");
-                update.append(entry.getKey().name).append(" = ?");
+        for (Map.Entry<String, Known> entry : written.entrySet()) {
+            // Players that aren't online anymore aren't tracked
+            if (known.containsKey(entry.getKey())) known.put(entry.getKey(), entry.getValue());
+        }
+        unspool(uuids);
+        applying.set(true);
+        try {
+            for (Runnable adjustment : adjustments) adjustment.run();
+        } finally {
+            applying.set(false);
+        }
+        return true;
+    }
+
+    /**
+     * Write the spooled changes of all players, and the changes of players that left while the database was unavailable,
+     * in batches. Only called on the save thread
+     */
+    private void replay() {
+        Set<String> players = new LinkedHashSet<>(spooled().keySet());
+        // Players that left while the database was unavailable
+        players.addAll(pending.keySet());
+        List<String> uuids = new ArrayList<>(players);
+        if (uuids.isEmpty() || breaker.isOpen()) return;
+        Log.info("Writing spooled changes of " + uuids.size() + " players to DB");
+        for (int start = 0; start < uuids.size(); start += lookupBatchSize) {
+            if (!write(uuids.subList(start, Math.min(start + lookupBatchSize, uuids.size())))) return;
+        }
+    }
+
+    /**
+     * Read the spool once, marking the spooled fields as changed. Only called on the save thread
+     * @return The spooled changes by uuid and field name
+     */
+    private Map<String, Map<String, Spool.Entry>> spooled() {
+        if (spooled != null) return spooled;
+        spooled = new LinkedHashMap<>();
+        if (spool == null) return spooled;
+        try {
+            for (Spool.Entry entry : spool.read()) {
+                // Later entries are based on a newer version of the row
+                spooled.computeIfAbsent(entry.uuid, k -> new HashMap<>()).put(entry.field, entry);
+            }
+        } catch (IOException e) {
+            Log.err("Failed to read spooled DB changes: " + e);
+        }
+
+        for (Map.Entry<String, Map<String, Spool.Entry>> player : spooled.entrySet()) {
+            long version = -1;
+            Map<StorageEntry, Object> base = new HashMap<>();
+            for (Spool.Entry entry : player.getValue().values()) {
+                StorageEntry field = field(entry.field);
+                if (field == null) continue;
+                version = Math.max(version, entry.version);
+                if (entry.base != null) base.put(field, parse(field, entry.base));
+                markDirty(player.getKey(), field);
+            }
+            if (!known.containsKey(player.getKey())) pending.put(player.getKey(), new Known(version, base));
+        }
+        if (!spooled.isEmpty()) Log.info("Found spooled DB changes of " + spooled.size() + " players");
+        return spooled;
+    }
+
+    /**
+     * Append the changes that couldn't be written to the spool. Only called on the save thread
+     */
+    private void spool(List<Change> changes) {
+        if (spool == null) return;
+        List<Spool.Entry> entries = new ArrayList<>();
+        for (Change change : changes) {
+            Map<String, Spool.Entry> player = spooled.computeIfAbsent(change.uuid, k -> new HashMap<>());
+            for (StorageEntry field : fields) {
+                Spool.Entry old = player.get(field.name);
+                if (old == null && !change.fields.contains(field)) continue;
+                // Older entries of the player are replaced, so all of them are based on the same version of the row
+                if (old != null && old.version == change.known.version) continue;
+                // A base the player had no local value for stays unknown, so it is merged like before the restart
+                Spool.Entry entry = new Spool.Entry(change.uuid, field.name, change.known.version, FieldType.format(change.known.base.get(field)));
+                player.put(field.name, entry);
+                entries.add(entry);
             }
+        }
+        try {
+            spool.append(entries);
+        } catch (IOException e) {
+            Log.err("Failed to spool DB changes: " + e);
+        }
+    }
+
+    /**
+     * Remove players whose changes were written from the spool. Only called on the save thread
+     */
+    private void unspool(List<String> uuids) {
+        boolean changed = false;
+        for (String uuid : uuids) {
+            pending.remove(uuid);
+            if (spooled.remove(uuid) != null) changed = true;
+        }
+        if (!changed) return;
+        List<Spool.Entry> entries = new ArrayList<>();
+        for (Map<String, Spool.Entry> player : spooled.values()) entries.addAll(player.values());
+        try {
+            spool.rewrite(entries);
+        } catch (IOException e) {
+            Log.err("Failed to spool DB changes: " + e);
+        }
+    }
 
-            String query = "UPDATE players SET " + update + " WHERE uuid = '" + uuid + "'";
-            PreparedStatement statement = connection.prepareStatement(query);
-            int i = 0;
-            for (Map.Entry<StorageEntry, DataStorage> entry : storages.entrySet()) {
-                i++;
-                DataStorage storage = entry.getValue();
-                if (Objects.equals(entry.getKey().type, "string"))
-                    statement.setString(i, storage.getString(uuid, entry.getKey().defaultValue));
-                if (Objects.equals(entry.getKey().type, "int"))
-                    statement.setInt(i, storage.getInt(uuid, Integer.parseInt(entry.getKey().defaultValue)));
-                if (Objects.equals(entry.getKey().type, "double"))
-                    statement.setDouble(i, storage.getDouble(uuid, Double.parseDouble(entry.getKey().defaultValue)));
-                if (Objects.equals(entry.getKey().type, "bool"))
-                    statement.setBoolean(i, storage.getBool(uuid, Boolean.parseBoolean(entry.getKey().defaultValue)));
+    private void insert(Connection connection, Change change) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(change.queries().insert)) {
+            statement.setString(1, change.uuid);
+            for (int i = 0; i < change.fields.size(); i++) change.fields.get(i).type.bind(statement, i + 2, change.values[i]);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Lock the row of a player changed by another server, and write the merged values
+     * @return What is known about the row after writing it
+     */
+    private Known merge(Connection connection, Change change, List<Runnable> adjustments) throws SQLException {
+        List<StorageEntry> fields = this.fields;
+        long version;
+        Object[] remote = new Object[fields.size()];
+        try (PreparedStatement select = connection.prepareStatement(lockQuery)) {
+            select.setString(1, change.uuid);
+            try (ResultSet res = select.executeQuery()) {
+                if (!res.next()) {
+                    // The player was removed from the database
+                    insert(connection, change);
+                    return change.known.next(1, change.fields, change.values);
+                }
+                version = res.getLong(1);
+                for (int i = 0; i < fields.size(); i++) remote[i] = parse(fields.get(i), fields.get(i).type.get(res, i + 2));
             }
+        }
+
+        Object[] merged = new Object[change.fields.size()];
+        for (int i = 0; i < change.fields.size(); i++) {
+            StorageEntry field = change.fields.get(i);
+            Object current = remote[fields.indexOf(field)];
+            // The changes of a player that joined while the database was unavailable aren't based on the row
+            if (change.known.version < 0)
+                merged[i] = field.policy.resolveUnread(field.type, change.values[i], change.known.base.get(field), field.parsedDefault, current);
+            else
+                merged[i] = field.policy.resolve(field.type, change.values[i], change.known.base(field), current);
+        }
+        try (PreparedStatement statement = connection.prepareStatement(change.queries().merge)) {
+            for (int i = 0; i < change.fields.size(); i++) change.fields.get(i).type.bind(statement, i + 1, merged[i]);
+            statement.setLong(change.fields.size() + 1, version + 1);
+            statement.setString(change.fields.size() + 2, change.uuid);
             statement.executeUpdate();
-            statement.close();
+        }
+
+        // Bring the fields changed by the other server up to date. Players that aren't online get the data on join
+        for (int i = 0; known.containsKey(change.uuid) && i < fields.size(); i++) {
+            StorageEntry field = fields.get(i);
+            Object base = change.known.base(field);
+            Object current = remote[i];
+            // Local values that lost the merge are replaced like values this server didn't write
+            int index = change.fields.indexOf(field);
+            boolean changed = index >= 0 && Objects.equals(merged[index], change.values[index]);
+            adjustments.add(() -> refresh(change.uuid, field, base, current, changed));
+        }
+        return change.known.next(version + 1, fields, remote).next(version + 1, change.fields, merged);
+    }
+
+    /**
+     * Update the local value of a field that another server changed in the database
+     * @param base The value this server last read from or wrote to the database
+     * @param remote The new value in the database
+     * @param written Whether this server just wrote the field
+     */
+    private void refresh(String uuid, StorageEntry field, Object base, Object remote, boolean written) {
+        if (Objects.equals(base, remote)) return;
+        cache.remove(uuid);
+        DataStorage storage = storages.get(field);
+        switch (field.policy) {
+            case ADDITIVE:
+                FieldType.Arithmetic arithmetic = field.type.arithmetic();
+                Object delta = arithmetic.subtract(remote, base);
+                storage.update(uuid, current -> FieldType.format(arithmetic.add(current == null ? field.parsedDefault : field.type.parse(current), delta)));
+                break;
+            case KEEP_REMOTE:
+                storage.set(uuid, FieldType.format(remote));
+                break;
+            default:
+                // Local changes that aren't saved yet win
+                if (!written) storage.update(uuid, current -> isDirty(uuid, field) ? current : FieldType.format(remote));
+        }
+    }
+
+    /**
+     * Update the online players that were changed by another server. Only called on the save thread
+     */
+    private void poll() {
+        if (known.isEmpty() || pool == null || breaker.isOpen()) return;
+        List<String> uuids = new ArrayList<>(known.keySet());
+        List<StorageEntry> fields = this.fields;
+        try {
+            run(pollOperation, connection -> {
+                pollChanges(connection, uuids, fields);
+                return null;
+            });
         } catch (SQLException e) {
-            Log.err("SQL Exception 3: " + e);
+            logError("SQL Exception 7", e);
         }
     }
 
+    /**
+     * Read the versions of the tracked players, and the full rows of the changed ones
+     */
+    private void pollChanges(Connection connection, List<String> uuids, List<StorageEntry> fields) throws SQLException {
+        ensureSchema(connection);
+        // Only the versions are read for all players, which is a cheap primary key lookup
+        List<String> changed = new ArrayList<>();
+        for (int start = 0; start < uuids.size(); start += lookupBatchSize) {
+            List<String> chunk = uuids.subList(start, Math.min(start + lookupBatchSize, uuids.size()));
+            try (PreparedStatement statement = connection.prepareStatement("SELECT uuid, version FROM players WHERE uuid IN (" + placeholders(chunk.size()) + ")")) {
+                for (int i = 0; i < chunk.size(); i++) statement.setString(i + 1, chunk.get(i));
+                try (ResultSet res = statement.executeQuery()) {
+                    while (res.next()) {
+                        Known player = known.get(res.getString(1));
+                        if (player != null && res.getLong(2) > player.version) changed.add(res.getString(1));
+                    }
+                }
+            }
+        }
+        if (changed.isEmpty()) return;
+
+        applying.set(true);
+        try (PreparedStatement statement = connection.prepareStatement("SELECT uuid, version, " + columnList + " FROM players WHERE uuid IN (" + placeholders(changed.size()) + ")")) {
+            for (int i = 0; i < changed.size(); i++) statement.setString(i + 1, changed.get(i));
+            try (ResultSet res = statement.executeQuery()) {
+                while (res.next()) {
+                    String uuid = res.getString(1);
+                    Known player = known.get(uuid);
+                    Object[] remote = new Object[fields.size()];
+                    for (int i = 0; i < fields.size(); i++) {
+                        remote[i] = parse(fields.get(i), fields.get(i).type.get(res, i + 3));
+                        refresh(uuid, fields.get(i), player.base(fields.get(i)), remote[i], false);
+                    }
+                    known.put(uuid, player.next(res.getLong(2), fields, remote));
+                }
+            }
+        } finally {
+            applying.set(false);
+        }
+    }
+
+    private boolean isDirty(String uuid, StorageEntry field) {
+        boolean[] result = new boolean[1];
+        dirty.computeIfPresent(uuid, (key, fields) -> {
+            result[0] = fields.contains(field);
+            return fields;
+        });
+        return result[0];
+    }
+
+    private static boolean isDuplicate(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) result.append(i == 0 ? "?" : ",?");
+        return result.toString();
+    }
+
+    private static Object parse(StorageEntry field, String value) {
+        return value == null ? null : field.type.parse(value);
+    }
+
+    /**
+     * Mark all fields of a player as changed, so they are written with the next save
+     * @param uuid The uuid of the player
+     */
+    public void markDirty(String uuid) {
+        for (StorageEntry field : storages.keySet()) markDirty(uuid, field);
+    }
+
+    private void markDirty(String uuid, StorageEntry field) {
+        cache.remove(uuid);
+        // Only changed inside compute, so a set removed by a save is never changed afterwards
+        dirty.compute(uuid, (key, fields) -> {
+            if (fields == null) fields = new HashSet<>();
+            fields.add(field);
+            return fields;
+        });
+    }
+
+    private StorageEntry field(String name) {
+        for (StorageEntry field : fields) {
+            if (field.name.equals(name)) return field;
+        }
+        return null;
+    }
+
+    private void addField(StorageEntry field, DataStorage storage) {
+        field.columnType = backend.columnType(field.type);
+        field.index = fields.size();
+        storages.put(field, storage);
+        fields.add(field);
+        StringBuilder columns = new StringBuilder();
+        for (StorageEntry entry : fields) {
+            if (columns.length() > 0) columns.append(",");
+            columns.append(entry.name);
+        }
+        columnList = columns.toString();
+        selectQuery = "SELECT version, " + columns + " FROM players WHERE uuid = ?";
+        lockQuery = selectQuery + " FOR UPDATE";
+        schemaReady = false;
+        storage.listen((uuid, value) -> {
+            if (!applying.get()) markDirty(uuid, field);
+        });
+    }
+
+    /**
+     * The metrics of a kind of database operation, looked up once
+     */
+    private static class Operation {
+        final Metrics.Counter rejected;
+        final Metrics.Counter errors;
+        final Metrics.Histogram time;
+
+        Operation(String name) {
+            rejected = Metrics.global.counter("tsrcore_db_rejected_total", "Database operations refused while the database is unavailable", "operation", name);
+            errors = Metrics.global.counter("tsrcore_db_errors_total", "Failed database operations", "operation", name);
+            time = Metrics.global.histogram("tsrcore_db_query_seconds", "Time spent on database operations", "operation", name);
+        }
+    }
+
+    private interface SqlTask<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
     private static class StorageEntry {
         String name;
-        String type;
+        FieldType type;
         String defaultValue;
+        Object parsedDefault;
+        String columnType;
+        // The position of the field in fields
+        int index;
+        volatile ConflictPolicy policy = ConflictPolicy.OVERWRITE;
 
-        public StorageEntry(String name, String type, String defaultValue) {
+        public StorageEntry(String name, FieldType type, String defaultValue) {
             this.name = name;
             this.type = type;
             this.defaultValue = defaultValue;
+            this.parsedDefault = type.parse(defaultValue);
+        }
+    }
+
+    private static class PlayerRow {
+        final Map<StorageEntry, String> values;
+        // The version of the row, or -1 if the player isn't in the database yet
+        final long version;
+
+        PlayerRow(Map<StorageEntry, String> values, long version) {
+            this.values = values;
+            this.version = version;
+        }
+    }
+
+    private static class Known {
+        // The version of the row, or -1 if the player isn't in the database yet
+        final long version;
+        // The values the changes are based on. Fields a player without a row had no local value for are missing
+        final Map<StorageEntry, Object> base;
+
+        Known(long version, Map<StorageEntry, Object> base) {
+            this.version = version;
+            this.base = base;
+        }
+
+        Object base(StorageEntry field) {
+            return base.containsKey(field) ? base.get(field) : field.parsedDefault;
+        }
+
+        Known next(long version, List<StorageEntry> fields, Object[] values) {
+            Map<StorageEntry, Object> next = new HashMap<>(base);
+            for (int i = 0; i < fields.size(); i++) next.put(fields.get(i), values[i]);
+            return new Known(version, next);
+        }
+    }
+
+    /**
+     * The statements that save a set of changed fields, built once per set
+     */
+    private static class SaveQueries {
+        // Update a row this server read, unless another server wrote it in the meantime
+        final String update;
+        // Insert a player that isn't in the database yet
+        final String insert;
+        // Write the merged values of a row locked by the merge
+        final String merge;
+
+        SaveQueries(List<StorageEntry> fields) {
+            StringBuilder set = new StringBuilder();
+            StringBuilder names = new StringBuilder("uuid, version");
+            StringBuilder values = new StringBuilder("?, 1");
+            for (StorageEntry field : fields) {
+                set.append(field.name).append(" = ?, ");
+                names.append(", ").append(field.name);
+                values.append(", ?");
+            }
+            update = "UPDATE players SET " + set + "version = version + 1 WHERE uuid = ? AND version = ?";
+            insert = "INSERT INTO players (" + names + ") VALUES (" + values + ")";
+            merge = "UPDATE players SET " + set + "version = ? WHERE uuid = ?";
+        }
+    }
+
+    /**
+     * The changed fields of a player and their values, read when the save is written
+     */
+    private class Change {
+        final String uuid;
+        final List<StorageEntry> fields = new ArrayList<>();
+        final BitSet mask = new BitSet();
+        final Object[] values;
+        final Known known;
+
+        Change(String uuid, Set<StorageEntry> changed) {
+            this.uuid = uuid;
+            // Registration order, so players with the same changed fields share a batch
+            for (StorageEntry field : Database.this.fields) {
+                if (!changed.contains(field)) continue;
+                fields.add(field);
+                mask.set(field.index);
+            }
+            values = new Object[fields.size()];
+            for (int i = 0; i < fields.size(); i++) {
+                StorageEntry field = fields.get(i);
+                values[i] = field.type.read(storages.get(field), uuid, field.parsedDefault);
+            }
+            Known player = Database.this.known.get(uuid);
+            if (player == null) player = pending.get(uuid);
+            this.known = player == null ? new Known(-1, new HashMap<>()) : player;
+        }
+
+        SaveQueries queries() {
+            return saveQueries.computeIfAbsent(mask, m -> new SaveQueries(fields));
         }
     }
 }
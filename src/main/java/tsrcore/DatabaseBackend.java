@@ -0,0 +1,60 @@
+package tsrcore;
+
+import java.sql.SQLException;
+
+/**
+ * <p>Defines the database engine used by the {@link Database}.</p>
+ * <p>Everything that differs between SQL dialects is asked from the backend, the rest of the SQL is shared.</p>
+ */
+public interface DatabaseBackend {
+    /**
+     * @return The name of the database engine, used in log messages
+     */
+    String name();
+
+    /**
+     * @return The class name of the JDBC driver to load
+     */
+    String driverClass();
+
+    /**
+     * Get the JDBC connect string to use
+     * @param configured The connect string set in the settings, which may be empty
+     * @return The connect string
+     */
+    default String connectString(String configured) {
+        return configured;
+    }
+
+    /**
+     * Get the SQL type of a column for a player data field
+     * @param type The type of the field
+     * @return The SQL type
+     */
+    String columnType(FieldType type);
+
+    /**
+     * Get the statement that creates an index on a column
+     * @param column The name of the column
+     * @return The SQL statement
+     */
+    default String createIndexQuery(String column) {
+        return "CREATE INDEX idx_players_" + column + " ON players (" + column + ")";
+    }
+
+    /**
+     * Check if creating an index failed only because the index exists already
+     * @param error The error thrown when creating the index
+     * @return Whether the index exists
+     */
+    default boolean indexExists(SQLException error) {
+        return false;
+    }
+
+    /**
+     * @return The fetch size that makes the driver stream large results instead of buffering them
+     */
+    default int streamingFetchSize() {
+        return 100;
+    }
+}
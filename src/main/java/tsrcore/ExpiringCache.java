@@ -0,0 +1,91 @@
+package tsrcore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A thread-safe cache with a limited size, where entries expire after a fixed time.</p>
+ * <p>If the cache is full, the least recently used entry is dropped.</p>
+ * @param <V> The type of the cached values
+ */
+public class ExpiringCache<V> {
+    private final long timeToLive;
+    private final Entries<V> entries;
+
+    /**
+     * Create a new cache
+     * @param maxEntries The max amount of entries
+     * @param timeToLive The time in seconds after which an entry expires
+     */
+    public ExpiringCache(int maxEntries, float timeToLive) {
+        this.timeToLive = (long) (timeToLive * 1000);
+        entries = new Entries<>(maxEntries);
+    }
+
+    /**
+     * Get a cached value
+     * @param key The key of the value
+     * @return The value, or null if it isn't cached or expired
+     */
+    public synchronized V get(String key) {
+        Cached<V> entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Cache a value
+     * @param key The key of the value
+     * @param value The value
+     */
+    public synchronized void put(String key, V value) {
+        entries.put(key, new Cached<>(value, System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Remove a value, like because it changed
+     * @param key The key of the value
+     */
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove all values
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * The entries in the order they were used, dropping the least recently used one when full
+     */
+    private static class Entries<V> extends LinkedHashMap<String, Cached<V>> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        Entries(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached<V>> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private static class Cached<V> {
+        final V value;
+        final long expires;
+
+        Cached(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package tsrcore;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * <p>The type of a player data field synced by the {@link Database}.</p>
+ * <p>Each type knows how to read its value from a {@link DataStorage} and a result set, and how to bind it to a statement,
+ * so syncing a field never has to compare type names or parse its default value again.</p>
+ */
+public enum FieldType {
+    STRING {
+        @Override
+        public Object parse(String text) {
+            return text;
+        }
+
+        @Override
+        Object read(DataStorage storage, String uuid, Object defaultValue) {
+            return storage.getString(uuid, (String) defaultValue);
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setString(index, (String) value);
+        }
+
+        @Override
+        String get(ResultSet res, int index) throws SQLException {
+            return res.getString(index);
+        }
+    },
+    INT(Arithmetic.INT) {
+        @Override
+        public Object parse(String text) {
+            return Integer.parseInt(text);
+        }
+
+        @Override
+        Object read(DataStorage storage, String uuid, Object defaultValue) {
+            return storage.getInt(uuid, (Integer) defaultValue);
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setInt(index, (Integer) value);
+        }
+
+        @Override
+        String get(ResultSet res, int index) throws SQLException {
+            return String.valueOf(res.getInt(index));
+        }
+    },
+    BOOL {
+        @Override
+        public Object parse(String text) {
+            return Boolean.parseBoolean(text);
+        }
+
+        @Override
+        Object read(DataStorage storage, String uuid, Object defaultValue) {
+            return storage.getBool(uuid, (Boolean) defaultValue);
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setBoolean(index, (Boolean) value);
+        }
+
+        @Override
+        String get(ResultSet res, int index) throws SQLException {
+            return String.valueOf(res.getBoolean(index));
+        }
+    },
+    DOUBLE(Arithmetic.DOUBLE) {
+        @Override
+        public Object parse(String text) {
+            return Double.parseDouble(text);
+        }
+
+        @Override
+        Object read(DataStorage storage, String uuid, Object defaultValue) {
+            return storage.getDouble(uuid, (Double) defaultValue);
+        }
+
+        @Override
+        void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setDouble(index, (Double) value);
+        }
+
+        @Override
+        String get(ResultSet res, int index) throws SQLException {
+            return String.valueOf(res.getDouble(index));
+        }
+    };
+
+    private final Arithmetic arithmetic;
+
+    FieldType() {
+        this(null);
+    }
+
+    FieldType(Arithmetic arithmetic) {
+        this.arithmetic = arithmetic;
+    }
+
+    /**
+     * Parse a value of this type from text
+     * @param text The text to parse
+     * @return The value
+     */
+    public abstract Object parse(String text);
+
+    /**
+     * @return Whether values of this type can be added up, like for {@link ConflictPolicy#ADDITIVE}
+     */
+    public boolean numeric() {
+        return arithmetic != null;
+    }
+
+    /**
+     * @return How values of this type are added up, or null if the type isn't {@link #numeric()}
+     */
+    Arithmetic arithmetic() {
+        return arithmetic;
+    }
+
+    /**
+     * Get a value as the text stored in a data storage
+     */
+    static String format(Object value) {
+        return value == null ? null : String.valueOf(value);
+    }
+
+    /**
+     * Read the value of a player from a storage, setting the default value if there is none
+     */
+    abstract Object read(DataStorage storage, String uuid, Object defaultValue);
+
+    /**
+     * Bind a value read by {@link #read(DataStorage, String, Object)} to a statement parameter
+     */
+    abstract void bind(PreparedStatement statement, int index, Object value) throws SQLException;
+
+    /**
+     * Get a column of a result set as the text stored in a data storage
+     */
+    abstract String get(ResultSet res, int index) throws SQLException;
+
+    /**
+     * Adds up the values of a numeric type
+     */
+    enum Arithmetic {
+        INT {
+            @Override
+            Object add(Object a, Object b) {
+                return (Integer) a + (Integer) b;
+            }
+
+            @Override
+            Object subtract(Object a, Object b) {
+                return (Integer) a - (Integer) b;
+            }
+        },
+        DOUBLE {
+            @Override
+            Object add(Object a, Object b) {
+                return (Double) a + (Double) b;
+            }
+
+            @Override
+            Object subtract(Object a, Object b) {
+                return (Double) a - (Double) b;
+            }
+        };
+
+        abstract Object add(Object a, Object b);
+
+        abstract Object subtract(Object a, Object b);
+    }
+}
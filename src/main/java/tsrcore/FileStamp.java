@@ -0,0 +1,70 @@
+package tsrcore;
+
+import arc.files.Fi;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Remembers the modification time, size and checksum of a file, to cheaply check if it was changed.</p>
+ * <p>The checksum is always computed from bytes that are already in memory, while reading or writing the file,
+ * so the file is never read again only to stamp it.</p>
+ */
+class FileStamp {
+    private long modified = -1;
+    private long length = -1;
+    private long checksum = -1;
+
+    /**
+     * Read a file and remember its state
+     * @param file The file
+     * @return A reader of the content that was read
+     */
+    synchronized Reader read(Fi file) {
+        // Taken before reading, so a change while reading is seen by the next check
+        modified = file.lastModified();
+        byte[] content = file.exists() ? file.readBytes() : new byte[0];
+        length = content.length;
+        checksum = checksum(content);
+        // The default charset, like Fi.reader()
+        return new InputStreamReader(new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Remember the state of a file that was just written
+     * @param file The file
+     * @param checksum The checksum of the written content, see {@link #checksum(byte[])}
+     */
+    synchronized void update(Fi file, long checksum) {
+        modified = file.lastModified();
+        length = file.length();
+        this.checksum = checksum;
+    }
+
+    /**
+     * Check if a file was changed since it was last read or written. This doesn't change the stamp.
+     * The content is only compared if the modification time changed but the size didn't
+     * @param file The file
+     * @return Whether the content of the file changed
+     */
+    synchronized boolean changed(Fi file) {
+        if (!file.exists()) return false;
+        long newLength = file.length();
+        if (newLength != length) return true;
+        if (file.lastModified() == modified) return false;
+        // Files written again with the same content, or only touched, aren't reloaded
+        return checksum(file.readBytes()) != checksum;
+    }
+
+    /**
+     * @param content The content of a file
+     * @return The checksum of the content
+     */
+    static long checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,54 @@
+package tsrcore;
+
+import java.io.File;
+
+/**
+ * <p>Uses an embedded H2 database stored in a local file, so no database server is needed.</p>
+ * <p>This is useful for single servers, and for testing the database sync without a MySQL server.</p>
+ */
+public class H2Backend implements DatabaseBackend {
+    private final String path;
+
+    /**
+     * Create a new H2 backend
+     * @param path The path of the database file, without the extension. Used if no connect string is set
+     */
+    public H2Backend(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public String name() {
+        return "H2";
+    }
+
+    @Override
+    public String driverClass() {
+        return "org.h2.Driver";
+    }
+
+    @Override
+    public String connectString(String configured) {
+        if (configured != null && !configured.isEmpty()) return configured;
+        return "jdbc:h2:file:" + new File(path).getAbsolutePath();
+    }
+
+    @Override
+    public String columnType(FieldType type) {
+        switch (type) {
+            case INT:
+                return "INT";
+            case BOOL:
+                return "BOOLEAN";
+            case DOUBLE:
+                return "DOUBLE PRECISION";
+            default:
+                return "VARCHAR";
+        }
+    }
+
+    @Override
+    public String createIndexQuery(String column) {
+        return "CREATE INDEX IF NOT EXISTS idx_players_" + column + " ON players (" + column + ")";
+    }
+}
@@ -0,0 +1,124 @@
+package tsrcore;
+
+import arc.struct.ObjectIntMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A {@link DataStorage} for int values, like money or permission levels.</p>
+ * <p>Values are kept as primitives next to the stored text, so reading them with {@link #getInt(String, int)}
+ * doesn't parse or allocate anything. The primitives are split by the key locks, so reading a value only locks its key,
+ * and never together with another lock. The file format is the same as for a normal data storage.</p>
+ */
+public class IntDataStorage extends DataStorage {
+    // One map for each key lock, only used while holding that lock
+    private final List<ObjectIntMap<String>> values = new ArrayList<>(lockStripes);
+
+    /**
+     * <p>Create a new int data storage object.</p>
+     * <p>The file is automatically created if it is not present.</p>
+     * <p>The data is loaded automatically.</p>
+     * @param path The path of the data file
+     */
+    public IntDataStorage(String path) {
+        super(path);
+        createMaps();
+    }
+
+    /**
+     * <p>Create a new int data storage object persisted by a custom backend.</p>
+     * <p>The data is loaded automatically.</p>
+     * @param backend The backend that stores the data
+     */
+    public IntDataStorage(StorageBackend backend) {
+        super(backend);
+        createMaps();
+    }
+
+    private void createMaps() {
+        for (int i = 0; i < lockStripes; i++) values.add(new ObjectIntMap<>());
+    }
+
+    @Override
+    public void load() {
+        super.load();
+        // Called by the super constructor before the maps exist
+        if (values == null) return;
+        for (int i = 0; i < values.size(); i++) {
+            ObjectIntMap<String> map = values.get(i);
+            synchronized (lockAt(i)) {
+                map.clear();
+            }
+        }
+    }
+
+    @Override
+    protected void changed(String key, String value) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException err) {
+            mapOf(key).remove(key, 0);
+            cleared(key);
+            return;
+        }
+        mapOf(key).put(key, parsed);
+        changed(key, parsed);
+    }
+
+    /**
+     * Called whenever a value is set to an int, while the key is locked
+     * @param key The name of the value
+     * @param value The new value
+     */
+    protected void changed(String key, int value) {}
+
+    /**
+     * Called whenever a value is set to something that isn't an int, like when it is removed by setting it to null,
+     * while the key is locked
+     * @param key The name of the value
+     */
+    protected void cleared(String key) {}
+
+    @Override
+    protected void evicted(String key) {
+        mapOf(key).remove(key, 0);
+    }
+
+    @Override
+    public Integer getInt(String key) {
+        synchronized (lockFor(key)) {
+            ObjectIntMap<String> map = mapOf(key);
+            int value = map.get(key, Integer.MIN_VALUE);
+            if (value != Integer.MIN_VALUE || map.containsKey(key)) return value;
+            return parse(key, map);
+        }
+    }
+
+    @Override
+    public int getInt(String key, int notFound) {
+        synchronized (lockFor(key)) {
+            ObjectIntMap<String> map = mapOf(key);
+            int value = map.get(key, Integer.MIN_VALUE);
+            if (value != Integer.MIN_VALUE || map.containsKey(key)) return value;
+            Integer parsed = parse(key, map);
+            if (parsed != null) return parsed;
+        }
+        set(key, String.valueOf(notFound));
+        return notFound;
+    }
+
+    /**
+     * Parse a value that isn't cached yet. Only called while the key is locked
+     */
+    private Integer parse(String key, ObjectIntMap<String> map) {
+        Integer value = super.getInt(key);
+        if (value != null) map.put(key, value);
+        return value;
+    }
+
+    private ObjectIntMap<String> mapOf(String key) {
+        return values.get(stripeOf(key));
+    }
+}
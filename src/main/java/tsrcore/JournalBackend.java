@@ -0,0 +1,244 @@
+package tsrcore;
+
+import arc.files.Fi;
+import arc.struct.ObjectMap;
+import arc.util.Log;
+import arc.util.io.PropertiesUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Stores the data of a {@link DataStorage} as a properties snapshot plus an append-only journal.</p>
+ * <p>Every change only appends a small record to the journal. Once the journal grows too large compared to the
+ * snapshot, the next store compacts it into a new snapshot. Records that were only partially written,
+ * for example because the server crashed, are detected by their checksum and dropped on load.</p>
+ * <p>The journal is synced to disk shortly after a change, together with all other changes made in the meantime,
+ * so a crash loses at most the changes of the sync interval.</p>
+ * <p>The snapshot is a normal properties file, so existing data storage files can be used directly.</p>
+ */
+public class JournalBackend implements StorageBackend {
+    private static final long minCompactSize = 64 * 1024;
+    private static final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "TSRCore-Journal-Sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Fi snapshotFile;
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final float compactRatio;
+    private final long syncInterval;
+    private final FileStamp stamp = new FileStamp();
+    private FileOutputStream journal;
+    // Whether records were appended since the journal was last synced
+    private boolean unsynced;
+    private long journalSize;
+    private long snapshotSize;
+
+    /**
+     * <p>Create a new journal backend, which compacts once the journal is twice as large as the snapshot,
+     * and syncs the journal every 100 milliseconds.</p>
+     * <p>The files are automatically created if they are not present.</p>
+     * @param path The path of the snapshot file. The journal is stored next to it
+     */
+    public JournalBackend(String path) {
+        this(path, 2f);
+    }
+
+    /**
+     * <p>Create a new journal backend, which syncs the journal every 100 milliseconds.</p>
+     * <p>The files are automatically created if they are not present.</p>
+     * @param path The path of the snapshot file. The journal is stored next to it
+     * @param compactRatio How large the journal may grow compared to the snapshot before it is compacted
+     */
+    public JournalBackend(String path, float compactRatio) {
+        this(path, compactRatio, 0.1f);
+    }
+
+    /**
+     * <p>Create a new journal backend.</p>
+     * <p>The files are automatically created if they are not present.</p>
+     * @param path The path of the snapshot file. The journal is stored next to it
+     * @param compactRatio How large the journal may grow compared to the snapshot before it is compacted
+     * @param syncInterval The max time in seconds between a change and syncing it to disk, or 0 to sync every change before returning
+     */
+    public JournalBackend(String path, float compactRatio, float syncInterval) {
+        this.snapshotFile = new Fi(path);
+        this.journalFile = new File(path + ".journal");
+        this.oldJournalFile = new File(path + ".journal.old");
+        this.compactRatio = compactRatio;
+        this.syncInterval = (long) (syncInterval * 1000);
+        PropertiesBackend.createIfMissing(snapshotFile);
+    }
+
+    @Override
+    public String name() {
+        return snapshotFile.name();
+    }
+
+    @Override
+    public synchronized void load(ObjectMap<String, String> storage) throws IOException {
+        PropertiesUtils.load(storage, stamp.read(snapshotFile));
+        snapshotSize = snapshotFile.length();
+        if (oldJournalFile.exists())
+            replay(oldJournalFile, storage);
+        closeJournal();
+        journalSize = journalFile.exists() ? replay(journalFile, storage) : 0;
+    }
+
+    @Override
+    public synchronized boolean modified() {
+        // The journal only grows by the records written here, so any other size means something else changed it
+        long actualJournalSize = journalFile.exists() ? journalFile.length() : 0;
+        return stamp.changed(snapshotFile) || actualJournalSize != journalSize;
+    }
+
+    @Override
+    public synchronized boolean write(String key, String value) throws IOException {
+        byte[] record = encode(key, value);
+        if (journal == null)
+            journal = new FileOutputStream(journalFile, true);
+        journal.write(record);
+        journalSize += record.length;
+        if (syncInterval <= 0) {
+            journal.getFD().sync();
+        } else if (!unsynced) {
+            unsynced = true;
+            syncer.schedule(this::sync, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        return journalSize < Math.max(minCompactSize, snapshotSize * compactRatio);
+    }
+
+    @Override
+    public synchronized void beginStore() throws IOException {
+        closeJournal();
+        if (!journalFile.exists()) return;
+        if (oldJournalFile.exists()) {
+            // The last compaction failed, keep its records until a snapshot succeeds
+            try (FileOutputStream out = new FileOutputStream(oldJournalFile, true)) {
+                Files.copy(journalFile.toPath(), out);
+                out.getFD().sync();
+            }
+            Files.delete(journalFile.toPath());
+        } else {
+            Files.move(journalFile.toPath(), oldJournalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        journalSize = 0;
+    }
+
+    @Override
+    public void store(ObjectMap<String, String> storage) throws IOException {
+        long checksum = PropertiesBackend.writeAtomic(snapshotFile, storage);
+        synchronized (this) {
+            snapshotSize = snapshotFile.length();
+            stamp.update(snapshotFile, checksum);
+            Files.deleteIfExists(oldJournalFile.toPath());
+        }
+    }
+
+    @Override
+    public synchronized long storedBytes() {
+        return snapshotSize;
+    }
+
+    /**
+     * Sync the records appended since the last sync to disk, without blocking writes while waiting for the disk
+     */
+    private void sync() {
+        FileOutputStream stream;
+        synchronized (this) {
+            if (!unsynced || journal == null) return;
+            stream = journal;
+            unsynced = false;
+        }
+        try {
+            stream.getFD().sync();
+        } catch (IOException err) {
+            synchronized (this) {
+                // A journal closed in the meantime was synced when it was closed
+                if (journal != stream) return;
+            }
+            Log.err("Error syncing journal of " + name(), err);
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal == null) return;
+        try {
+            journal.getFD().sync();
+        } finally {
+            journal.close();
+            journal = null;
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Apply all valid records of a journal file. A damaged tail is cut off
+     * @return The size of the valid part of the journal
+     */
+    private long replay(File file, ObjectMap<String, String> storage) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                // Lengths from a damaged tail can be anything, so they are checked against what is left of the file
+                if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength > file.length() - valid - 12) break;
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                in.readFully(key);
+                in.readFully(value);
+                if (in.readInt() != checksum(key, value)) break;
+                storage.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+                valid += 12 + keyLength + valueLength;
+            }
+        } catch (EOFException ignored) {
+            // End of the journal, possibly with a partially written record
+        }
+        if (valid < file.length()) {
+            Log.warn("Dropping damaged journal tail of " + file.getName());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        return valid;
+    }
+
+    private static byte[] encode(String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + keyBytes.length + valueBytes.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(keyBytes.length);
+        out.writeInt(valueBytes.length);
+        out.write(keyBytes);
+        out.write(valueBytes);
+        out.writeInt(checksum(keyBytes, valueBytes));
+        return bytes.toByteArray();
+    }
+
+    private static int checksum(byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,184 @@
+package tsrcore;
+
+import arc.struct.ObjectIntMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Keeps keys sorted by an int score, highest first.</p>
+ * <p>Updating a score, getting the rank of a key and getting the top entries all take logarithmic time,
+ * since it is backed by a treap that knows the size of each subtree.</p>
+ */
+public class Leaderboard {
+    private final ObjectIntMap<String> scores = new ObjectIntMap<>();
+    private final Random random = new Random();
+    private Node root;
+
+    /**
+     * Set the score of a key, adding it if it isn't on the leaderboard yet
+     * @param key The key, like the uuid of a player
+     * @param score The new score
+     */
+    public synchronized void set(String key, int score) {
+        if (scores.containsKey(key)) {
+            int old = scores.get(key, 0);
+            if (old == score) return;
+            root = remove(root, key, old);
+        }
+        scores.put(key, score);
+        root = insert(root, new Node(key, score, random.nextInt()));
+    }
+
+    /**
+     * Remove a key from the leaderboard
+     * @param key The key to remove
+     */
+    public synchronized void remove(String key) {
+        if (!scores.containsKey(key)) return;
+        root = remove(root, key, scores.remove(key, 0));
+    }
+
+    /**
+     * Get the rank of a key
+     * @param key The key
+     * @return The rank, starting at 1 for the highest score, or -1 if the key isn't on the leaderboard
+     */
+    public synchronized int rank(String key) {
+        if (!scores.containsKey(key)) return -1;
+        int score = scores.get(key, 0);
+        int before = 0;
+        Node node = root;
+        while (node != null) {
+            int compare = compare(key, score, node);
+            if (compare == 0) return before + size(node.left) + 1;
+            if (compare < 0) {
+                node = node.left;
+            } else {
+                before += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the entries with the highest scores
+     * @param count The max amount of entries
+     * @return The entries, highest score first
+     */
+    public synchronized List<Entry> top(int count) {
+        List<Entry> result = new ArrayList<>(Math.min(count, size(root)));
+        collect(root, result, count);
+        return result;
+    }
+
+    /**
+     * @return The amount of keys on the leaderboard
+     */
+    public synchronized int size() {
+        return size(root);
+    }
+
+    private void collect(Node node, List<Entry> result, int count) {
+        if (node == null || result.size() >= count) return;
+        collect(node.left, result, count);
+        if (result.size() >= count) return;
+        result.add(new Entry(node.key, node.score));
+        collect(node.right, result, count);
+    }
+
+    private Node insert(Node node, Node added) {
+        if (node == null) return added;
+        if (added.priority > node.priority) {
+            Node[] parts = split(node, added.key, added.score);
+            added.left = parts[0];
+            added.right = parts[1];
+            return update(added);
+        }
+        if (compare(added.key, added.score, node) < 0) node.left = insert(node.left, added);
+        else node.right = insert(node.right, added);
+        return update(node);
+    }
+
+    private Node remove(Node node, String key, int score) {
+        if (node == null) return null;
+        int compare = compare(key, score, node);
+        if (compare == 0) return merge(node.left, node.right);
+        if (compare < 0) node.left = remove(node.left, key, score);
+        else node.right = remove(node.right, key, score);
+        return update(node);
+    }
+
+    /**
+     * Split a subtree into the nodes ordered before and after a key
+     */
+    private Node[] split(Node node, String key, int score) {
+        if (node == null) return new Node[]{null, null};
+        if (compare(key, score, node) < 0) {
+            Node[] parts = split(node.left, key, score);
+            node.left = parts[1];
+            parts[1] = update(node);
+            return parts;
+        }
+        Node[] parts = split(node.right, key, score);
+        node.right = parts[0];
+        parts[0] = update(node);
+        return parts;
+    }
+
+    private Node merge(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+
+    /**
+     * Higher scores come first, equal scores are ordered by key
+     */
+    private static int compare(String key, int score, Node node) {
+        if (score != node.score) return score > node.score ? -1 : 1;
+        return key.compareTo(node.key);
+    }
+
+    private static Node update(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+        return node;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static class Node {
+        final String key;
+        final int score;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(String key, int score, int priority) {
+            this.key = key;
+            this.score = score;
+            this.priority = priority;
+        }
+    }
+
+    /** An entry on the leaderboard */
+    public static class Entry {
+        public final String key;
+        public final int score;
+
+        public Entry(String key, int score) {
+            this.key = key;
+            this.score = score;
+        }
+    }
+}
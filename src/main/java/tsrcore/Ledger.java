@@ -0,0 +1,109 @@
+package tsrcore;
+
+import arc.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An append-only log of money transactions.</p>
+ * <p>Entries are queued and written by a background thread, which commits everything that piled up in one write,
+ * so many transactions per second only cost a few disk syncs. Entries that couldn't be written are kept and
+ * written again before newer ones, so the ledger always matches the balances.</p>
+ */
+public class Ledger {
+    private static final long retryInterval = 1000;
+
+    private final File file;
+    private final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final Object commitLock = new Object();
+    // Entries taken from the queue that aren't written yet, oldest first. Only used while holding the commit lock
+    private final List<String> unwritten = new ArrayList<>();
+    private FileChannel channel;
+
+    /**
+     * <p>Create a new ledger.</p>
+     * <p>The file is automatically created if it is not present. New entries are appended to it.</p>
+     * @param path The path of the ledger file
+     */
+    public Ledger(String path) {
+        file = new File(path);
+        Thread writer = new Thread(this::run, "TSRCore-Ledger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::commit, "TSRCore-Ledger-Shutdown"));
+    }
+
+    /**
+     * Add an entry to the ledger. It is written with the next commit
+     * @param type The type of the transaction
+     * @param from The uuid money is taken from, or null
+     * @param to The uuid money is given to, or null
+     * @param amount The amount of money
+     */
+    public void record(String type, String from, String to, int amount) {
+        pending.add(System.currentTimeMillis() + "\t" + type + "\t" + (from == null ? "-" : from) + "\t" + (to == null ? "-" : to) + "\t" + amount + "\n");
+    }
+
+    /**
+     * Write all pending entries and sync them to disk. This is done automatically
+     * @return Whether all entries were written
+     */
+    public boolean commit() {
+        synchronized (commitLock) {
+            pending.drainTo(unwritten);
+            if (unwritten.isEmpty()) return true;
+
+            StringBuilder text = new StringBuilder();
+            for (String entry : unwritten) text.append(entry);
+            long start = -1;
+            try {
+                if (channel == null)
+                    channel = new FileOutputStream(file, true).getChannel();
+                start = channel.size();
+                ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+            } catch (IOException err) {
+                Log.err("Error writing ledger " + file.getName() + ", retrying " + unwritten.size() + " entries", err);
+                // A partially written batch is cut off, since all of it is written again by the retry
+                try {
+                    if (channel != null) {
+                        if (start >= 0) channel.truncate(start);
+                        channel.close();
+                    }
+                } catch (IOException ignored) {
+                    // Already failing
+                }
+                channel = null;
+                return false;
+            }
+            unwritten.clear();
+            return true;
+        }
+    }
+
+    private void run() {
+        try {
+            boolean written = true;
+            while (true) {
+                // Sleeps until something is recorded. Everything recorded during a commit is written by the next one
+                String entry = written ? pending.take() : pending.poll(retryInterval, TimeUnit.MILLISECONDS);
+                synchronized (commitLock) {
+                    if (entry != null) unwritten.add(entry);
+                    written = commit();
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // Stopped
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package tsrcore;
+
+import arc.files.Fi;
+import arc.struct.ObjectMap;
+import arc.util.Log;
+import arc.util.io.PropertiesUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * <p>Stores the data of a {@link DataStorage} in a memory-mapped binary hash table.</p>
+ * <p>Each key has a fixed-size slot, so a change only writes that slot in place, and values are read on demand
+ * instead of being parsed on load. Values that are ints, doubles or booleans are stored in binary form.</p>
+ * <p>The table is rebuilt with more or larger slots when it gets too full or a value doesn't fit. Such a change isn't
+ * written right away, but requests a store, so the rebuild runs on the flusher thread of a write-behind data storage
+ * instead of the thread that changed the value. The old file is unmapped before it is replaced, so this also works on Windows.</p>
+ */
+public class MappedBackend implements StorageBackend {
+    private static final int magic = 0x5453524D;
+    private static final int version = 1;
+    private static final int headerSize = 32;
+    // The used flag, the type and the int lengths of the key and the value
+    private static final int slotHeaderSize = 10;
+    private static final float maxLoad = 0.7f;
+
+    private static final byte typeString = 0;
+    private static final byte typeInt = 1;
+    private static final byte typeDouble = 2;
+    private static final byte typeBool = 3;
+
+    private final File file;
+    private final String legacyPath;
+    // Null if the file isn't loaded, or couldn't be loaded
+    private MappedByteBuffer buffer;
+    // Changes that don't fit into the table, written by the next store
+    private final ObjectMap<String, String> pending = new ObjectMap<>();
+    private int capacity;
+    private int count;
+    private int keyBytes;
+    private int valueBytes;
+    private int slotSize;
+
+    /**
+     * <p>Create a new memory-mapped backend.</p>
+     * <p>The file is automatically created if it is not present.</p>
+     * @param path The path of the binary file
+     */
+    public MappedBackend(String path) {
+        this(path, null);
+    }
+
+    /**
+     * <p>Create a new memory-mapped backend, migrating the data of an existing properties file.</p>
+     * <p>If the binary file doesn't exist yet, it is created and filled with the data of the properties file once.</p>
+     * @param path The path of the binary file
+     * @param legacyPath The path of the properties file to migrate from
+     */
+    public MappedBackend(String path, String legacyPath) {
+        this.file = new File(path);
+        this.legacyPath = legacyPath;
+    }
+
+    @Override
+    public String name() {
+        return file.getName();
+    }
+
+    @Override
+    public boolean modified() {
+        return false;
+    }
+
+    @Override
+    public boolean readsOnDemand() {
+        return true;
+    }
+
+    @Override
+    public synchronized void load(ObjectMap<String, String> storage) throws IOException {
+        if (buffer != null) return;
+        if (file.exists()) {
+            map(file);
+            return;
+        }
+
+        ObjectMap<String, String> legacy = new ObjectMap<>();
+        if (legacyPath != null && new Fi(legacyPath).exists()) {
+            PropertiesUtils.load(legacy, new Fi(legacyPath).reader());
+            Log.info("Migrating " + legacyPath + " to " + file.getPath());
+        }
+        rebuild(legacy, tableSize(legacy.size), 48, 64);
+    }
+
+    @Override
+    public synchronized String read(String key) throws IOException {
+        checkLoaded();
+        String waiting = pending.get(key);
+        if (waiting != null) return waiting;
+        int slot = find(encode(key));
+        if (buffer.get(slotOffset(slot)) == 0) return null;
+        return readValue(slot);
+    }
+
+    @Override
+    public synchronized boolean write(String key, String value) throws IOException {
+        checkLoaded();
+        if (!put(key, value, false)) {
+            pending.put(key, value);
+            return false;
+        }
+        pending.remove(key);
+        return true;
+    }
+
+    @Override
+    public synchronized void store(ObjectMap<String, String> storage) throws IOException {
+        // A file that couldn't be loaded is kept as it is, instead of being replaced by the data in memory
+        checkLoaded();
+        // Values that were dropped from memory since they were changed are only pending here
+        for (ObjectMap.Entry<String, String> entry : pending) {
+            put(entry.key, entry.value, true);
+        }
+        pending.clear();
+        for (ObjectMap.Entry<String, String> entry : storage) {
+            put(entry.key, entry.value, true);
+        }
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void readAll(ObjectMap<String, String> storage) throws IOException {
+        checkLoaded();
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            if (buffer.get(offset) == 0) continue;
+            byte[] key = new byte[keyLength(offset)];
+            position(offset + slotHeaderSize);
+            buffer.get(key);
+            storage.put(new String(key, StandardCharsets.UTF_8), readValue(slot));
+        }
+        storage.putAll(pending);
+    }
+
+    /**
+     * Write a value into its slot
+     * @param rebuild Whether to rebuild the table if the value doesn't fit
+     * @return Whether the value was written. Always true if rebuilding is allowed
+     */
+    private boolean put(String key, String value, boolean rebuild) throws IOException {
+        byte[] keyData = encode(key);
+        byte type = typeOf(value);
+        byte[] valueData = type == typeString ? encode(value) : null;
+        if (keyData.length > keyBytes || (valueData != null && valueData.length > valueBytes)) {
+            if (!rebuild) return false;
+            ObjectMap<String, String> all = new ObjectMap<>();
+            readAll(all);
+            all.put(key, value);
+            rebuild(all, capacity, keyBytes, valueBytes);
+            return true;
+        }
+
+        int slot = find(keyData);
+        if (buffer.get(slotOffset(slot)) == 0 && count + 1 > capacity * maxLoad) {
+            if (!rebuild) return false;
+            ObjectMap<String, String> all = new ObjectMap<>();
+            readAll(all);
+            all.put(key, value);
+            rebuild(all, capacity * 2, keyBytes, valueBytes);
+            return true;
+        }
+        int offset = slotOffset(slot);
+        if (buffer.get(offset) == 0) {
+            buffer.putInt(offset + 2, keyData.length);
+            position(offset + slotHeaderSize);
+            buffer.put(keyData);
+            count++;
+            buffer.putInt(12, count);
+        }
+
+        int valueOffset = offset + slotHeaderSize + keyBytes;
+        switch (type) {
+            case typeInt:
+                buffer.putInt(valueOffset, Integer.parseInt(value));
+                break;
+            case typeDouble:
+                buffer.putDouble(valueOffset, Double.parseDouble(value));
+                break;
+            case typeBool:
+                buffer.put(valueOffset, (byte) (value.equals("true") ? 1 : 0));
+                break;
+            default:
+                position(valueOffset);
+                buffer.put(valueData);
+                buffer.putInt(offset + 6, valueData.length);
+        }
+        buffer.put(offset + 1, type);
+        buffer.put(offset, (byte) 1);
+        return true;
+    }
+
+    private String readValue(int slot) {
+        int offset = slotOffset(slot);
+        int valueOffset = offset + slotHeaderSize + keyBytes;
+        switch (buffer.get(offset + 1)) {
+            case typeInt:
+                return String.valueOf(buffer.getInt(valueOffset));
+            case typeDouble:
+                return String.valueOf(buffer.getDouble(valueOffset));
+            case typeBool:
+                return String.valueOf(buffer.get(valueOffset) == 1);
+            default:
+                byte[] value = new byte[valueLength(offset)];
+                position(valueOffset);
+                buffer.get(value);
+                return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return The slot holding the key, or the empty slot where it should be inserted
+     */
+    private int find(byte[] key) {
+        int mask = capacity - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            int offset = slotOffset(slot);
+            if (buffer.get(offset) == 0 || keyEquals(offset, key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int offset, byte[] key) {
+        if (keyLength(offset) != key.length) return false;
+        int keyOffset = offset + slotHeaderSize;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyOffset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write all the data into a new table, which then replaces the old file. The slots are grown to fit all the data
+     */
+    private void rebuild(ObjectMap<String, String> data, int newCapacity, int newKeyBytes, int newValueBytes) throws IOException {
+        for (ObjectMap.Entry<String, String> entry : data) {
+            newKeyBytes = grow(newKeyBytes, encode(entry.key).length);
+            if (typeOf(entry.value) == typeString)
+                newValueBytes = grow(newValueBytes, encode(entry.value).length);
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tempFile.toPath());
+        long newSlotSize = slotHeaderSize + newKeyBytes + newValueBytes;
+        if (headerSize + newCapacity * newSlotSize > Integer.MAX_VALUE)
+            throw new IOException("Data storage " + file.getName() + " is too large to be mapped");
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.setLength(headerSize + newCapacity * newSlotSize);
+            MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, headerSize);
+            header.putInt(0, magic);
+            header.putInt(4, version);
+            header.putInt(8, newCapacity);
+            header.putInt(12, 0);
+            header.putInt(16, newKeyBytes);
+            header.putInt(20, newValueBytes);
+            header.force();
+            unmap(header);
+        }
+
+        MappedByteBuffer old = buffer;
+        try {
+            map(tempFile);
+            for (ObjectMap.Entry<String, String> entry : data) {
+                put(entry.key, entry.value, true);
+            }
+            buffer.force();
+        } catch (IOException | RuntimeException err) {
+            // Keep using the old table
+            if (buffer != old) unmap(buffer);
+            buffer = old;
+            if (old != null) readHeader(old);
+            throw err;
+        }
+
+        // Windows can't replace a file that is still mapped
+        unmap(buffer);
+        buffer = null;
+        if (old != null) unmap(old);
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException err) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // The new file if it was moved, or the old one if it wasn't
+            if (file.exists()) map(file);
+        }
+    }
+
+    /**
+     * Map a file and read its header. The buffer is only replaced if the file is valid
+     */
+    private void map(File source) throws IOException {
+        MappedByteBuffer mapped;
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            if (raf.length() < headerSize || raf.length() > Integer.MAX_VALUE)
+                throw new IOException("Invalid data storage file " + source.getName());
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        long expectedLength = headerSize + (long) mapped.getInt(8) * (slotHeaderSize + mapped.getInt(16) + mapped.getInt(20));
+        if (mapped.getInt(0) != magic || mapped.getInt(4) != version || mapped.capacity() < expectedLength) {
+            unmap(mapped);
+            throw new IOException("Invalid data storage file " + source.getName());
+        }
+        buffer = mapped;
+        readHeader(mapped);
+    }
+
+    private void readHeader(MappedByteBuffer mapped) {
+        capacity = mapped.getInt(8);
+        count = mapped.getInt(12);
+        keyBytes = mapped.getInt(16);
+        valueBytes = mapped.getInt(20);
+        slotSize = slotHeaderSize + keyBytes + valueBytes;
+    }
+
+    private void checkLoaded() throws IOException {
+        if (buffer == null) throw new IOException("Data storage " + file.getName() + " couldn't be loaded");
+    }
+
+    private int keyLength(int offset) {
+        return buffer.getInt(offset + 2);
+    }
+
+    private int valueLength(int offset) {
+        return buffer.getInt(offset + 6);
+    }
+
+    /**
+     * Release a mapping right away. Java has no public way to do this, so otherwise the file stays mapped,
+     * and locked on Windows, until the buffer is garbage collected. The buffer must not be used afterwards
+     */
+    private static void unmap(MappedByteBuffer mapped) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), mapped);
+            } catch (NoSuchMethodException err) {
+                // Java 8
+                Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(mapped);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException err) {
+            // Released once it is garbage collected
+            Log.debug("Couldn't unmap data storage file: " + err);
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return headerSize + slot * slotSize;
+    }
+
+    private void position(int offset) {
+        // Cast for Java 8 compatibility, where Buffer.position returns a Buffer
+        ((Buffer) buffer).position(offset);
+    }
+
+    private static int tableSize(int entries) {
+        int size = 1024;
+        while (entries > size * maxLoad) size *= 2;
+        return size;
+    }
+
+    private static int grow(int current, int needed) {
+        int size = current;
+        while (size < needed) size *= 2;
+        return size;
+    }
+
+    private static int hash(byte[] key) {
+        int hash = 0;
+        for (byte b : key) hash = 31 * hash + b;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the binary type a value can be stored as, without changing the value when it is read back
+     */
+    private static byte typeOf(String value) {
+        if (value.equals("true") || value.equals("false")) return typeBool;
+        if (value.isEmpty() || value.length() > 24) return typeString;
+        char first = value.charAt(0);
+        if (first != '-' && (first < '0' || first > '9')) return typeString;
+        try {
+            if (value.indexOf('.') == -1 && value.indexOf('E') == -1) {
+                if (String.valueOf(Integer.parseInt(value)).equals(value)) return typeInt;
+            } else if (String.valueOf(Double.parseDouble(value)).equals(value)) {
+                return typeDouble;
+            }
+        } catch (NumberFormatException ignored) {
+            // Not a number, like an ip address
+        }
+        return typeString;
+    }
+}
@@ -0,0 +1,304 @@
+package tsrcore;
+
+import arc.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * <p>Collects counters, gauges and latency histograms, and exports them in the Prometheus text format.</p>
+ * <p>Recording never locks, so it can be done from any thread on hot paths. Instruments are identified by their
+ * name and labels, and asking for the same instrument twice returns the same one.</p>
+ */
+public class Metrics {
+    /** The metrics of TSR Core. Plugins can add their own metrics to it */
+    public static final Metrics global = new Metrics();
+
+    // Upper bounds of the histogram buckets in seconds
+    private static final double[] bounds = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TSRCore-Metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+    private ScheduledFuture<?> writeTask;
+
+    /**
+     * Get a counter, creating it if needed
+     * @param name The name of the metric, like tsrcore_db_errors_total
+     * @param help A description of the metric
+     * @param labels Label names and values, alternating
+     * @return The counter
+     */
+    public synchronized Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").instruments.computeIfAbsent(labels(labels), l -> new Counter());
+    }
+
+    /**
+     * Get a latency histogram, creating it if needed
+     * @param name The name of the metric, like tsrcore_db_query_seconds
+     * @param help A description of the metric
+     * @param labels Label names and values, alternating
+     * @return The histogram
+     */
+    public synchronized Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").instruments.computeIfAbsent(labels(labels), l -> new Histogram());
+    }
+
+    /**
+     * Add a gauge, which reads its value when the metrics are exported. Replaces a gauge with the same name and labels
+     * @param name The name of the metric, like tsrcore_storage_pending_changes
+     * @param help A description of the metric
+     * @param value Gets the current value. Called from any thread
+     * @param labels Label names and values, alternating
+     */
+    public synchronized void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").instruments.put(labels(labels), value);
+    }
+
+    /**
+     * @return All metrics in the Prometheus text format
+     */
+    public synchronized String prometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            text.append("# HELP ").append(name).append(" ").append(family.help).append("\n");
+            text.append("# TYPE ").append(name).append(" ").append(family.type).append("\n");
+            for (Map.Entry<String, Object> instrument : family.instruments.entrySet()) {
+                String labels = instrument.getKey();
+                Object value = instrument.getValue();
+                if (value instanceof Counter) {
+                    text.append(name).append(braces(labels)).append(" ").append(((Counter) value).get()).append("\n");
+                } else if (value instanceof DoubleSupplier) {
+                    text.append(name).append(braces(labels)).append(" ").append(format(((DoubleSupplier) value).getAsDouble())).append("\n");
+                } else {
+                    Histogram histogram = (Histogram) value;
+                    long[] counts = histogram.counts();
+                    long total = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        total += counts[i];
+                        String bound = i < bounds.length ? format(bounds[i]) : "+Inf";
+                        String bucketLabels = labels.isEmpty() ? "le=\"" + bound + "\"" : labels + ",le=\"" + bound + "\"";
+                        text.append(name).append("_bucket{").append(bucketLabels).append("} ").append(total).append("\n");
+                    }
+                    text.append(name).append("_sum").append(braces(labels)).append(" ").append(format(histogram.sum())).append("\n");
+                    text.append(name).append("_count").append(braces(labels)).append(" ").append(total).append("\n");
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Get a short, human readable line for every metric that has a value, like for a command
+     * @return The lines
+     */
+    public synchronized List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey().startsWith("tsrcore_") ? entry.getKey().substring(8) : entry.getKey();
+            for (Map.Entry<String, Object> instrument : entry.getValue().instruments.entrySet()) {
+                String label = name + braces(instrument.getKey()).replace("\"", "");
+                Object value = instrument.getValue();
+                if (value instanceof Counter) {
+                    long count = ((Counter) value).get();
+                    if (count != 0) lines.add(label + ": " + count);
+                } else if (value instanceof DoubleSupplier) {
+                    double current = ((DoubleSupplier) value).getAsDouble();
+                    if (current != 0) lines.add(label + ": " + format(current));
+                } else {
+                    Histogram histogram = (Histogram) value;
+                    long count = histogram.count();
+                    if (count == 0) continue;
+                    lines.add(label + ": " + count + "x, avg " + millis(histogram.sum() / count)
+                            + ", p50 " + millis(histogram.percentile(0.5)) + ", p99 " + millis(histogram.percentile(0.99)));
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * <p>Write all metrics to a file in the Prometheus text format every interval, for a local scraper to read.</p>
+     * <p>The file is replaced at once, so it is never read half written.</p>
+     * @param path The path of the file
+     * @param interval The time in seconds between writes, or 0 to stop writing
+     */
+    public synchronized void writeEvery(String path, float interval) {
+        if (writeTask != null) writeTask.cancel(false);
+        writeTask = null;
+        if (interval <= 0) return;
+        long period = Math.max(1, (long) (interval * 1000));
+        writeTask = writer.scheduleAtFixedRate(() -> write(path), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write all metrics to a file in the Prometheus text format
+     * @param path The path of the file
+     */
+    public void write(String path) {
+        File file = new File(path);
+        File tempFile = new File(path + ".tmp");
+        try {
+            Files.write(tempFile.toPath(), prometheus().getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException err) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException err) {
+            Log.err("Error writing metrics to " + path, err);
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        return family;
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels need a name and a value");
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) result.append(",");
+            String value = labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            result.append(labels[i]).append("=\"").append(value).append("\"");
+        }
+        return result.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) return String.valueOf((long) value);
+        return String.valueOf(value);
+    }
+
+    private static String millis(double seconds) {
+        return String.format(Locale.ROOT, "%.1fms", seconds * 1000);
+    }
+
+    private static class Family {
+        final String help;
+        final String type;
+        // Instruments by their formatted labels
+        final Map<String, Object> instruments = new LinkedHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /** A value that only goes up, like the amount of errors */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /** Counts how long something took, in fixed buckets from 1ms to 10s */
+    public static class Histogram {
+        private final LongAdder[] counts = new LongAdder[bounds.length + 1];
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        /**
+         * Record a duration
+         * @param start The time the measured operation started at, from {@link System#nanoTime()}
+         */
+        public void since(long start) {
+            record((System.nanoTime() - start) / 1e9);
+        }
+
+        /**
+         * Record a duration
+         * @param seconds The duration in seconds
+         */
+        public void record(double seconds) {
+            int bucket = 0;
+            while (bucket < bounds.length && seconds > bounds[bucket]) bucket++;
+            counts[bucket].increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * @return The amount of recorded durations
+         */
+        public long count() {
+            long total = 0;
+            for (LongAdder count : counts) total += count.sum();
+            return total;
+        }
+
+        /**
+         * @return The sum of all recorded durations in seconds
+         */
+        public double sum() {
+            return sum.sum();
+        }
+
+        /**
+         * Estimate a percentile of the recorded durations by the upper bound of its bucket
+         * @param fraction The percentile between 0 and 1, like 0.99
+         * @return The estimated duration in seconds, or 0 if nothing was recorded
+         */
+        public double percentile(double fraction) {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts) total += count;
+            if (total == 0) return 0;
+            long target = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                // Durations above the last bound are reported as the last bound
+                if (seen >= target) return bounds[Math.min(i, bounds.length - 1)];
+            }
+            return bounds[bounds.length - 1];
+        }
+
+        long[] counts() {
+            long[] result = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) result[i] = counts[i].sum();
+            return result;
+        }
+    }
+}
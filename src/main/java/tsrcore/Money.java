@@ -1,8 +1,14 @@
 package tsrcore;
 
+import arc.struct.ObjectMap;
 import mindustry.gen.Player;
 
-public class Money extends DataStorage {
+import java.util.List;
+
+public class Money extends IntDataStorage {
+    private Ledger ledger;
+    private volatile Leaderboard leaderboard;
+
     /**
      * <p>>Create a new object storing the money each player has.</p>
      * <p>The file is created and loaded automatically.</p>
@@ -12,13 +18,35 @@ public class Money extends DataStorage {
         super(path);
     }
 
+    /**
+     * <p>Create a new object storing the money each player has, persisted by a custom backend.</p>
+     * <p>The data is loaded automatically.</p>
+     * @param backend The backend that stores the data
+     */
+    public Money(StorageBackend backend) {
+        super(backend);
+    }
+
+    /**
+     * Record all transactions in a ledger
+     * @param ledger The ledger to record the transactions in
+     * @return This money object
+     */
+    public Money ledger(Ledger ledger) {
+        this.ledger = ledger;
+        return this;
+    }
+
     /**
      * Set the money of a player by his uuid
      * @param uuid The uuid of the player
      * @param amount The amount to set to
      */
     public void set(String uuid, int amount) {
-        super.set(uuid, amount);
+        synchronized (lockFor(uuid)) {
+            super.set(uuid, amount);
+            record("set", null, uuid, amount);
+        }
     }
 
     /**
@@ -33,17 +61,24 @@ public class Money extends DataStorage {
     /**
      * Give money to a player by his uuid
      * @param uuid The uuid of the player
-     * @param amount The amount to give
+     * @param amount The amount to give, more than 0
+     * @throws IllegalArgumentException If the amount isn't positive
+     * @throws ArithmeticException If the player would have more money than an int can hold. Nothing is changed then
      */
     public void add(String uuid, int amount) {
-        int before = get(uuid);
-        set(uuid, before + amount);
+        checkAmount(amount);
+        synchronized (lockFor(uuid)) {
+            super.set(uuid, Math.addExact(get(uuid), amount));
+            record("add", null, uuid, amount);
+        }
     }
 
     /**
      * Give money to a player by an instance
      * @param player The instance of the player
-     * @param amount The amount to give
+     * @param amount The amount to give, more than 0
+     * @throws IllegalArgumentException If the amount isn't positive
+     * @throws ArithmeticException If the player would have more money than an int can hold. Nothing is changed then
      */
     public void add(Player player, int amount) {
         add(player.uuid(), amount);
@@ -52,22 +87,98 @@ public class Money extends DataStorage {
     /**
      * Remove money from a player by his uuid
      * @param uuid The uuid of the player
-     * @param amount The amount to remove
+     * @param amount The amount to remove, more than 0
+     * @throws IllegalArgumentException If the amount isn't positive
+     * @throws ArithmeticException If the player would have less money than an int can hold. Nothing is changed then
      */
     public void remove(String uuid, int amount) {
-        int before = get(uuid);
-        set(uuid, before - amount);
+        checkAmount(amount);
+        synchronized (lockFor(uuid)) {
+            super.set(uuid, Math.subtractExact(get(uuid), amount));
+            record("remove", uuid, null, amount);
+        }
     }
 
     /**
      * Remove money from a player by an instance
      * @param player The instance of the player
-     * @param amount The amount to remove
+     * @param amount The amount to remove, more than 0
+     * @throws IllegalArgumentException If the amount isn't positive
+     * @throws ArithmeticException If the player would have less money than an int can hold. Nothing is changed then
      */
     public void remove(Player player, int amount) {
         remove(player.uuid(), amount);
     }
 
+    /**
+     * Remove money from a player by his uuid, but only if he has enough
+     * @param uuid The uuid of the player
+     * @param amount The amount to remove, more than 0
+     * @return Whether the player had enough money
+     * @throws IllegalArgumentException If the amount isn't positive
+     */
+    public boolean withdraw(String uuid, int amount) {
+        checkAmount(amount);
+        synchronized (lockFor(uuid)) {
+            int before = get(uuid);
+            if (before < amount) return false;
+            super.set(uuid, before - amount);
+            record("withdraw", uuid, null, amount);
+        }
+        return true;
+    }
+
+    /**
+     * Remove money from a player by an instance, but only if he has enough
+     * @param player The instance of the player
+     * @param amount The amount to remove, more than 0
+     * @return Whether the player had enough money
+     * @throws IllegalArgumentException If the amount isn't positive
+     */
+    public boolean withdraw(Player player, int amount) {
+        return withdraw(player.uuid(), amount);
+    }
+
+    /**
+     * Move money from one player to another by their uuids, but only if the sender has enough
+     * @param from The uuid of the player sending the money
+     * @param to The uuid of the player receiving the money
+     * @param amount The amount to move, more than 0
+     * @return Whether the sender had enough money
+     * @throws IllegalArgumentException If the amount isn't positive
+     * @throws ArithmeticException If the receiver would have more money than an int can hold. Nothing is changed then
+     */
+    public boolean transfer(String from, String to, int amount) {
+        checkAmount(amount);
+        // Always lock in the same order, so two opposite transfers can't wait on each other
+        boolean fromFirst = stripeOf(from) <= stripeOf(to);
+        synchronized (lockFor(fromFirst ? from : to)) {
+            synchronized (lockFor(fromFirst ? to : from)) {
+                int before = get(from);
+                if (before < amount) return false;
+                if (from.equals(to)) return true;
+                int received = Math.addExact(get(to), amount);
+                super.set(from, before - amount);
+                super.set(to, received);
+                record("transfer", from, to, amount);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move money from one player to another by their instances, but only if the sender has enough
+     * @param from The player sending the money
+     * @param to The player receiving the money
+     * @param amount The amount to move, more than 0
+     * @return Whether the sender had enough money
+     * @throws IllegalArgumentException If the amount isn't positive
+     * @throws ArithmeticException If the receiver would have more money than an int can hold. Nothing is changed then
+     */
+    public boolean transfer(Player from, Player to, int amount) {
+        return transfer(from.uuid(), to.uuid(), amount);
+    }
+
     /**
      * Get the amount of money a player has by his uuid
      * @param uuid The uuid of the player
@@ -85,4 +196,95 @@ public class Money extends DataStorage {
     public int get(Player player) {
         return get(player.uuid());
     }
+
+    /**
+     * <p>Get the players with the most money.</p>
+     * <p>The first call builds a leaderboard of all players, which is then kept up to date with every change.</p>
+     * @param count The max amount of players
+     * @return The uuids and money of the players, richest first
+     */
+    public List<Leaderboard.Entry> top(int count) {
+        return leaderboard().top(count);
+    }
+
+    /**
+     * Get the position of a player on the money leaderboard by his uuid
+     * @param uuid The uuid of the player
+     * @return The rank, starting at 1 for the richest player, or -1 if the player has no money stored
+     */
+    public int rank(String uuid) {
+        return leaderboard().rank(uuid);
+    }
+
+    /**
+     * Get the position of a player on the money leaderboard by an instance
+     * @param player The player instance
+     * @return The rank, starting at 1 for the richest player, or -1 if the player has no money stored
+     */
+    public int rank(Player player) {
+        return rank(player.uuid());
+    }
+
+    @Override
+    public synchronized void load() {
+        super.load();
+        if (leaderboard != null) leaderboard = buildLeaderboard();
+    }
+
+    @Override
+    protected void changed(String key, int value) {
+        Leaderboard board = builtLeaderboard();
+        if (board != null) board.set(key, value);
+    }
+
+    @Override
+    protected void cleared(String key) {
+        Leaderboard board = builtLeaderboard();
+        if (board != null) board.remove(key);
+    }
+
+    /**
+     * @return The leaderboard, or null if it wasn't needed yet. Then the change is seen once it is built
+     */
+    private Leaderboard builtLeaderboard() {
+        Leaderboard board = leaderboard;
+        if (board != null) return board;
+        // Waits for a leaderboard that is being built, so the change isn't missed. Nothing locks a key while holding this
+        synchronized (this) {
+            return leaderboard;
+        }
+    }
+
+    private Leaderboard leaderboard() {
+        Leaderboard board = leaderboard;
+        if (board != null) return board;
+        // Changes wait on this lock, so none are missed while the leaderboard is built
+        synchronized (this) {
+            if (leaderboard == null) leaderboard = buildLeaderboard();
+            return leaderboard;
+        }
+    }
+
+    private Leaderboard buildLeaderboard() {
+        Leaderboard board = new Leaderboard();
+        for (ObjectMap.Entry<String, String> entry : all()) {
+            try {
+                board.set(entry.key, Integer.parseInt(entry.value));
+            } catch (NumberFormatException ignored) {
+                // Not a money value
+            }
+        }
+        return board;
+    }
+
+    private static void checkAmount(int amount) {
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be positive, but was " + amount);
+    }
+
+    /**
+     * Record a transaction. Called while the changed keys are locked, so the ledger has the same order as the changes
+     */
+    private void record(String type, String from, String to, int amount) {
+        if (ledger != null) ledger.record(type, from, to, amount);
+    }
 }
@@ -0,0 +1,42 @@
+package tsrcore;
+
+import java.sql.SQLException;
+
+/**
+ * Uses a MySQL server, connected to by the connect string in the settings.
+ */
+public class MySqlBackend implements DatabaseBackend {
+    @Override
+    public String name() {
+        return "MySQL";
+    }
+
+    @Override
+    public String driverClass() {
+        return "com.mysql.cj.jdbc.Driver";
+    }
+
+    @Override
+    public String columnType(FieldType type) {
+        switch (type) {
+            case INT:
+                return "INT";
+            case BOOL:
+                return "TINYINT(1)";
+            case DOUBLE:
+                return "DOUBLE";
+            default:
+                return "TEXT";
+        }
+    }
+
+    @Override
+    public boolean indexExists(SQLException error) {
+        return error.getErrorCode() == 1061;
+    }
+
+    @Override
+    public int streamingFetchSize() {
+        return Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,87 @@
+package tsrcore;
+
+import arc.Core;
+import at.favre.lib.crypto.bcrypt.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * <p>Hashes and verifies passwords with BCrypt on a few background threads.</p>
+ * <p>BCrypt is slow on purpose, so running it on the main thread would freeze the server for every login.
+ * Only a limited amount of requests is queued. If more arrive, they are rejected instead of piling up.</p>
+ */
+public class PasswordHasher {
+    private final ThreadPoolExecutor executor;
+    private final int cost;
+    private final Metrics.Histogram hashTime = Metrics.global.histogram("tsrcore_password_seconds", "Time spent hashing and verifying passwords");
+    private final Metrics.Counter rejected = Metrics.global.counter("tsrcore_password_rejected_total", "Password checks rejected because too many were queued");
+
+    /**
+     * Create a new password hasher
+     * @param threads The amount of passwords hashed at once
+     * @param cost The BCrypt cost factor of new hashes. Each step doubles the time a hash takes
+     * @param maxQueued The max amount of requests waiting for a thread
+     */
+    public PasswordHasher(int threads, int cost, int maxQueued) {
+        this.cost = cost;
+        threads = Math.max(1, threads);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, maxQueued)), runnable -> {
+            Thread thread = new Thread(runnable, "TSRCore-Password");
+            thread.setDaemon(true);
+            // Logins must not slow down the game thread
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Hash a new password
+     * @param password The password
+     * @return A future completed on the main thread with the hash. Fails with a {@link RejectedExecutionException} if too many requests are queued
+     */
+    public CompletableFuture<String> hash(String password) {
+        return submit(() -> BCrypt.withDefaults().hashToString(cost, password.toCharArray()));
+    }
+
+    /**
+     * Check a password against its hash
+     * @param password The password
+     * @param hash The stored hash
+     * @return A future completed on the main thread with whether the password is correct. Fails with a {@link RejectedExecutionException} if too many requests are queued
+     */
+    public CompletableFuture<Boolean> verify(String password, String hash) {
+        return submit(() -> BCrypt.verifyer().verify(password.toCharArray(), hash.toCharArray()).verified);
+    }
+
+    /**
+     * @return The BCrypt cost factor of new hashes
+     */
+    public int cost() {
+        return cost;
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    T value = task.get();
+                    hashTime.since(start);
+                    Core.app.post(() -> result.complete(value));
+                } catch (RuntimeException err) {
+                    Core.app.post(() -> result.completeExceptionally(err));
+                }
+            });
+        } catch (RejectedExecutionException err) {
+            rejected.increment();
+            result.completeExceptionally(err);
+        }
+        return result;
+    }
+}
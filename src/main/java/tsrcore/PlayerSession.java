@@ -0,0 +1,78 @@
+package tsrcore;
+
+import arc.struct.ObjectIntMap;
+import mindustry.gen.Player;
+
+/**
+ * <p>Everything TSR Core keeps about a connected player, so the checks done for every command need no lookups.</p>
+ * <p>Sessions are created when a player connects and dropped when they leave. They are only used on the main thread.</p>
+ */
+public class PlayerSession {
+    public final Player player;
+    public final String uuid;
+    private boolean loading;
+    private boolean verified = true;
+    private Role role;
+    // Whether each command can be used, 1 or 0, for the permission levels of commandsVersion
+    private final ObjectIntMap<String> permissions = new ObjectIntMap<>();
+    private int commandsVersion = -1;
+
+    PlayerSession(Player player) {
+        this.player = player;
+        this.uuid = player.uuid();
+    }
+
+    /**
+     * @return Whether the data of the player is still being loaded from the database
+     */
+    public boolean loading() {
+        return loading;
+    }
+
+    void loading(boolean loading) {
+        this.loading = loading;
+    }
+
+    /**
+     * @return Whether the player is registered from a known ip, or not registered at all
+     */
+    public boolean verified() {
+        return verified;
+    }
+
+    void verified(boolean verified) {
+        this.verified = verified;
+    }
+
+    /**
+     * @return The role of the player, or null if their data isn't loaded yet
+     */
+    public Role role() {
+        return role;
+    }
+
+    void role(Role role) {
+        this.role = role;
+        permissions.clear();
+    }
+
+    /**
+     * Check if the role of the player allows a command. The result is cached until the role or the permission levels change
+     * @param commandName The name of the command
+     * @param commands The commands data
+     * @return Whether the command can be used
+     */
+    public boolean canUseCommand(String commandName, Commands commands) {
+        if (role == null) return false;
+        if (commandsVersion != commands.version()) {
+            permissions.clear();
+            commandsVersion = commands.version();
+        }
+        int allowed = permissions.get(commandName, -1);
+        if (allowed == -1) {
+            allowed = role.canUseCommand(commandName, commands) ? 1 : 0;
+            permissions.put(commandName, allowed);
+        }
+        return allowed == 1;
+    }
+}
@@ -1,12 +1,15 @@
 package tsrcore;
 
+import arc.Core;
+import arc.struct.IntMap;
 import arc.struct.ObjectMap;
-import mindustry.gen.Groups;
 import mindustry.gen.Player;
 
 public class Players {
     private final TSRCore core;
-    private ObjectMap<String, Role> players;
+    // Sessions by player id, so commands find them without hashing the uuid
+    private final IntMap<PlayerSession> sessions = new IntMap<>();
+    private final ObjectMap<String, PlayerSession> players = new ObjectMap<>();
 
     /**
      * <p>Create a new class to store all the players in the game and their roles.</p>
@@ -16,7 +19,40 @@ public class Players {
      */
     public Players(TSRCore core) {
         this.core = core;
-        players = new ObjectMap<>();
+        // Roles can also be changed by other servers sharing the database
+        core.playerRoles.listen((uuid, id) -> Core.app.post(() -> {
+            PlayerSession session = players.get(uuid);
+            if (session == null || session.role() == null) return;
+            Role role;
+            try {
+                role = core.roles.get(Integer.parseInt(id));
+            } catch (NumberFormatException err) {
+                return;
+            }
+            if (role != null) setRole(session, role);
+        }));
+    }
+
+    /**
+     * <p>Start the session of a connecting player.</p>
+     * <p>This should be handled by the TSR Core in most cases.</p>
+     * @param player The player
+     * @return The new session
+     */
+    public PlayerSession connect(Player player) {
+        PlayerSession session = new PlayerSession(player);
+        sessions.put(player.id, session);
+        players.put(session.uuid, session);
+        return session;
+    }
+
+    /**
+     * Get the session of an online player
+     * @param player The player
+     * @return The session, or null if the player isn't connected
+     */
+    public PlayerSession session(Player player) {
+        return sessions.get(player.id);
     }
 
     /**
@@ -31,10 +67,11 @@ public class Players {
             set(player, defaultRoleID);
             id = String.valueOf(defaultRoleID);
         }
+        PlayerSession session = session(player);
+        if (session == null) session = connect(player);
         Role role = core.roles.get(Integer.parseInt(id));
-        players.put(player.uuid(), role);
-        if (!core.notVerified.contains(player))
-            if (role.admin) player.admin = true;
+        session.role(role);
+        if (session.verified() && role.admin) player.admin = true;
     }
 
     /**
@@ -43,7 +80,8 @@ public class Players {
      * @param player The player to remove
      */
     public void remove(Player player) {
-        players.remove(player.uuid());
+        PlayerSession session = sessions.remove(player.id);
+        if (session != null) players.remove(session.uuid);
     }
 
     /**
@@ -52,7 +90,8 @@ public class Players {
      * @return The {@link Role} of the player
      */
     public Role get(String uuid) {
-        return players.get(uuid);
+        PlayerSession session = players.get(uuid);
+        return session == null ? null : session.role();
     }
 
     /**
@@ -61,7 +100,8 @@ public class Players {
      * @return The {@link Role} of the player
      */
     public Role get(Player player) {
-        return get(player.uuid());
+        PlayerSession session = session(player);
+        return session == null ? null : session.role();
     }
 
     /**
@@ -104,12 +144,27 @@ public class Players {
      * Reloads the data
      */
     public void reload() {
-        ObjectMap<String, Role> newPlayers = new ObjectMap<>();
-        Groups.player.forEach(player -> {
-            Role role = core.roles.get(core.playerRoles.getInt(player.uuid()));
-            newPlayers.put(player.uuid(), role);
-            player.admin = role.admin;
-        });
-        players = newPlayers;
+        for (PlayerSession session : sessions.values()) {
+            // Players whose data is still loading get their role once it is loaded
+            if (session.role() == null) continue;
+            setRole(session, core.roles.get(core.playerRoles.getInt(session.uuid, core.settings.getInt("defaultRoleID"))));
+        }
+    }
+
+    /**
+     * Mark a player as verified, giving them the admin rights of their role
+     * @param player The player
+     */
+    public void verify(Player player) {
+        PlayerSession session = session(player);
+        if (session == null) return;
+        session.verified(true);
+        if (session.role() != null) session.player.admin = session.role().admin;
+    }
+
+    private void setRole(PlayerSession session, Role role) {
+        session.role(role);
+        // Players that didn't verify their ip don't get admin rights
+        session.player.admin = session.verified() && role.admin;
     }
 }
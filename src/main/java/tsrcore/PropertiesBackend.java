@@ -0,0 +1,104 @@
+package tsrcore;
+
+import arc.files.Fi;
+import arc.struct.ObjectMap;
+import arc.util.Log;
+import arc.util.io.PropertiesUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores the data of a {@link DataStorage} in a properties file, which is rewritten completely on every store.
+ */
+public class PropertiesBackend implements StorageBackend {
+    private final Fi file;
+    private final FileStamp stamp = new FileStamp();
+
+    /**
+     * <p>Create a new properties backend.</p>
+     * <p>The file is automatically created if it is not present.</p>
+     * @param path The path of the properties file
+     */
+    public PropertiesBackend(String path) {
+        file = new Fi(path);
+        createIfMissing(file);
+    }
+
+    @Override
+    public String name() {
+        return file.name();
+    }
+
+    @Override
+    public void load(ObjectMap<String, String> storage) {
+        PropertiesUtils.load(storage, stamp.read(file));
+    }
+
+    @Override
+    public boolean modified() {
+        return stamp.changed(file);
+    }
+
+    @Override
+    public boolean write(String key, String value) {
+        return false;
+    }
+
+    @Override
+    public void store(ObjectMap<String, String> storage) throws IOException {
+        stamp.update(file, writeAtomic(file, storage));
+    }
+
+    @Override
+    public long storedBytes() {
+        return file.length();
+    }
+
+    /**
+     * Create an empty file if it doesn't exist yet
+     * @param file The file to create
+     */
+    static void createIfMissing(Fi file) {
+        if (file.exists()) return;
+        try {
+            boolean created = new File(file.path()).createNewFile();
+            if (created)
+                Log.info("Created DataStorage file: " + file.path());
+        } catch (IOException err) {
+            Log.err("Error creating data storage file " + file.name(), err);
+        }
+    }
+
+    /**
+     * Write data to a properties file through a temporary file, so the file is never left half written.
+     * The data is synced to disk before it replaces the file
+     * @param file The file to write to
+     * @param storage The data to write
+     * @return The checksum of the written content, see {@link FileStamp#checksum(byte[])}
+     * @throws IOException If the file couldn't be written
+     */
+    static long writeAtomic(Fi file, ObjectMap<String, String> storage) throws IOException {
+        Fi tempFile = new Fi(file.path() + ".tmp");
+        StringWriter text = new StringWriter();
+        PropertiesUtils.store(storage, text, "");
+        byte[] content;
+        try (FileOutputStream out = new FileOutputStream(tempFile.file())) {
+            // The default charset, like the reader of the file
+            content = text.toString().getBytes();
+            out.write(content);
+            out.getFD().sync();
+        }
+        try {
+            Files.move(tempFile.file().toPath(), file.file().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException err) {
+            Files.move(tempFile.file().toPath(), file.file().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return FileStamp.checksum(content);
+    }
+}
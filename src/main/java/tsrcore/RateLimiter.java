@@ -0,0 +1,71 @@
+package tsrcore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Limits how often something may be done per key, like per uuid or ip, using a token bucket.</p>
+ * <p>Each key may act a few times in a burst, after which it gets new tokens at a fixed rate. A bucket is a single
+ * timestamp updated with compare-and-set, so checking a key never locks. Buckets that are full again are
+ * removed from time to time, so keys that stopped acting don't use memory.</p>
+ */
+public class RateLimiter {
+    private static final int sweepInterval = 256;
+
+    // The time in nanoseconds it takes to get a new token
+    private final long interval;
+    private final long burstTime;
+    // The time at which the bucket of a key is full again
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger untilSweep = new AtomicInteger(sweepInterval);
+
+    /**
+     * Create a new rate limiter
+     * @param perMinute The amount of new tokens each key gets per minute
+     * @param burst The max amount of tokens a key can save up
+     */
+    public RateLimiter(float perMinute, int burst) {
+        interval = (long) (60_000_000_000L / Math.max(perMinute, 0.001f));
+        burstTime = interval * Math.max(1, burst);
+    }
+
+    /**
+     * Take a token of a key
+     * @param key The key, like the uuid of a player
+     * @return Whether the key had a token left. If not, nothing is changed
+     */
+    public boolean tryAcquire(String key) {
+        long now = System.nanoTime();
+        if (untilSweep.decrementAndGet() <= 0) sweep(now);
+
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            AtomicLong created = new AtomicLong(now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) bucket = created;
+        }
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + interval;
+            if (next - now > burstTime) return false;
+            if (bucket.compareAndSet(full, next)) return true;
+        }
+    }
+
+    /**
+     * @return The amount of keys with tokens used
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Remove the buckets that are full again, which behave the same as new ones
+     */
+    private void sweep(long now) {
+        untilSweep.set(sweepInterval);
+        // A token taken right while its bucket is removed is lost, which only lets that key act once more
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+}
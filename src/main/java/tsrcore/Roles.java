@@ -13,7 +13,8 @@ import java.util.List;
 import java.util.Objects;
 
 public class Roles {
-    private List<Role> roles;
+    private volatile List<Role> roles;
+    private final FileStamp stamp = new FileStamp();
     public String path;
 
     /**
@@ -44,8 +45,25 @@ public class Roles {
      * Loads the roles data
      */
     public void load() {
+        roles = read();
+    }
+
+    /**
+     * Check if the roles file was changed since it was last read
+     * @return Whether the roles should be loaded again
+     */
+    public boolean modified() {
+        return stamp.changed(new Fi(path));
+    }
+
+    /**
+     * <p>Read the roles from the file without applying them.</p>
+     * <p>This can be called from any thread. Use {@link #set(List)} to apply the result.</p>
+     * @return The roles in the file
+     */
+    public List<Role> read() {
         Fi dataFile = new Fi(path);
-        roles = new ArrayList<>();
+        List<Role> roles = new ArrayList<>();
 
         ObjectMap<String, String> data = new ObjectMap<>();
         ObjectMap<String, String> ids = new ObjectMap<>();
@@ -53,7 +71,7 @@ public class Roles {
         ObjectMap<String, String> names = new ObjectMap<>();
         ObjectMap<String, String> admin = new ObjectMap<>();
 
-        PropertiesUtils.load(data, dataFile.reader());
+        PropertiesUtils.load(data, stamp.read(dataFile));
 
         data.forEach(entry -> {
             List<String> parts = Arrays.asList(entry.key.split("\\."));
@@ -73,6 +91,15 @@ public class Roles {
                 roles.add(role);
             }
         });
+        return roles;
+    }
+
+    /**
+     * Replace all roles
+     * @param roles The new roles
+     */
+    public void set(List<Role> roles) {
+        this.roles = roles;
     }
 
     /**
@@ -0,0 +1,202 @@
+package tsrcore;
+
+import arc.files.Fi;
+import arc.struct.ObjectMap;
+import arc.util.Log;
+import arc.util.io.PropertiesUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * <p>Stores the data of a {@link DataStorage} in a directory of properties files, with each key hashed into one shard.</p>
+ * <p>A store only rewrites the shards that changed, so the cost of a change is bounded by the size of a shard
+ * instead of the amount of all stored keys. The shards are loaded in parallel.</p>
+ */
+public class ShardedBackend implements StorageBackend {
+    private static final Pattern shardName = Pattern.compile("shard-(\\d+)-of-(\\d+)\\.properties");
+
+    private final Fi directory;
+    private final int shardCount;
+    private final String legacyPath;
+    private final boolean[] dirty;
+    private final boolean[] storing;
+    private final List<Fi> staleFiles = new ArrayList<>();
+    // Set when the loaded data isn't in the current shards yet, until the next store begins
+    private boolean migrated;
+    private final ObjectMap<String, FileStamp> stamps = new ObjectMap<>();
+    private volatile long storedBytes;
+
+    /**
+     * <p>Create a new sharded backend.</p>
+     * <p>The directory is automatically created if it is not present.</p>
+     * @param path The path of the directory holding the shards
+     * @param shardCount The amount of shards to split the data into
+     */
+    public ShardedBackend(String path, int shardCount) {
+        this(path, shardCount, null);
+    }
+
+    /**
+     * <p>Create a new sharded backend, migrating the data of an existing properties file.</p>
+     * <p>If the directory has no shards yet, they are created from the data of the properties file once.</p>
+     * @param path The path of the directory holding the shards
+     * @param shardCount The amount of shards to split the data into
+     * @param legacyPath The path of the properties file to migrate from
+     */
+    public ShardedBackend(String path, int shardCount, String legacyPath) {
+        this.directory = new Fi(path);
+        this.shardCount = Math.max(1, shardCount);
+        this.legacyPath = legacyPath;
+        this.dirty = new boolean[this.shardCount];
+        this.storing = new boolean[this.shardCount];
+        if (!directory.exists()) directory.mkdirs();
+    }
+
+    @Override
+    public String name() {
+        return directory.name();
+    }
+
+    @Override
+    public void load(ObjectMap<String, String> storage) {
+        List<Fi> files = new ArrayList<>();
+        List<Fi> stale = new ArrayList<>();
+        for (Fi file : directory.list()) {
+            Matcher matcher = shardName.matcher(file.name());
+            if (!matcher.matches()) continue;
+            if (Integer.parseInt(matcher.group(2)) == shardCount) files.add(file);
+            else stale.add(file);
+        }
+
+        if (files.isEmpty() && stale.isEmpty() && legacyPath != null && new Fi(legacyPath).exists()) {
+            Log.info("Migrating " + legacyPath + " to " + directory.path());
+            stale.add(new Fi(legacyPath));
+        }
+        boolean resharded = !stale.isEmpty();
+        // Shards from a different shard count are older, so they are applied first
+        stale.addAll(files);
+        files = stale;
+
+        List<FileStamp> fileStamps = new ArrayList<>();
+        synchronized (this) {
+            for (Fi file : files) fileStamps.add(stampOf(file));
+        }
+        List<Fi> loaded = files;
+        List<ObjectMap<String, String>> shards = IntStream.range(0, files.size()).parallel().mapToObj(i -> {
+            ObjectMap<String, String> shard = new ObjectMap<>();
+            PropertiesUtils.load(shard, fileStamps.get(i).read(loaded.get(i)));
+            return shard;
+        }).collect(Collectors.toList());
+        for (ObjectMap<String, String> shard : shards) {
+            storage.putAll(shard);
+        }
+
+        synchronized (this) {
+            if (resharded) {
+                // Write every key into the shard it belongs to with the current shard count
+                for (Fi file : files) {
+                    Matcher matcher = shardName.matcher(file.name());
+                    if (matcher.matches() && Integer.parseInt(matcher.group(2)) != shardCount) staleFiles.add(file);
+                }
+                for (int i = 0; i < shardCount; i++) dirty[i] = true;
+                migrated = true;
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean modified() {
+        boolean modified = false;
+        for (Fi file : directory.list()) {
+            if (shardName.matcher(file.name()).matches() && stampOf(file).changed(file)) modified = true;
+        }
+        return modified;
+    }
+
+    @Override
+    public synchronized boolean needsStore() {
+        return migrated;
+    }
+
+    @Override
+    public synchronized boolean write(String key, String value) {
+        dirty[shardOf(key)] = true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginStore() {
+        migrated = false;
+        for (int i = 0; i < shardCount; i++) {
+            storing[i] = storing[i] || dirty[i];
+            dirty[i] = false;
+        }
+    }
+
+    @Override
+    public void store(ObjectMap<String, String> storage) throws IOException {
+        boolean[] shards;
+        synchronized (this) {
+            shards = storing.clone();
+        }
+        List<ObjectMap<String, String>> data = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) data.add(shards[i] ? new ObjectMap<>() : null);
+        for (ObjectMap.Entry<String, String> entry : storage) {
+            ObjectMap<String, String> shard = data.get(shardOf(entry.key));
+            if (shard != null) shard.put(entry.key, entry.value);
+        }
+
+        IOException[] error = new IOException[1];
+        AtomicLong written = new AtomicLong();
+        IntStream.range(0, shardCount).parallel().filter(i -> shards[i]).forEach(i -> {
+            try {
+                Fi file = shardFile(i);
+                long checksum = PropertiesBackend.writeAtomic(file, data.get(i));
+                written.addAndGet(file.length());
+                synchronized (this) {
+                    storing[i] = false;
+                    stampOf(file).update(file, checksum);
+                }
+            } catch (IOException err) {
+                error[0] = err;
+            }
+        });
+        storedBytes = written.get();
+        if (error[0] != null) throw error[0];
+
+        synchronized (this) {
+            for (Fi file : staleFiles) file.delete();
+            staleFiles.clear();
+        }
+    }
+
+    @Override
+    public long storedBytes() {
+        return storedBytes;
+    }
+
+    private FileStamp stampOf(Fi file) {
+        FileStamp stamp = stamps.get(file.name());
+        if (stamp == null) {
+            stamp = new FileStamp();
+            stamps.put(file.name(), stamp);
+        }
+        return stamp;
+    }
+
+    private Fi shardFile(int shard) {
+        return directory.child("shard-" + shard + "-of-" + shardCount + ".properties");
+    }
+
+    private int shardOf(String key) {
+        int hash = key.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shardCount;
+    }
+}
@@ -0,0 +1,151 @@
+package tsrcore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>An append-only file of player data changes that couldn't be written to the database yet.</p>
+ * <p>Only which fields changed is stored, together with the row version and value the change was based on.
+ * The new values are in the data storages, so the changes can be merged into the database like a normal save,
+ * even after a restart. Lines that were only partially written are skipped.</p>
+ */
+class Spool {
+    private final File file;
+    private FileChannel channel;
+
+    /**
+     * The file is created once the first entry is appended
+     * @param path The path of the spool file
+     */
+    Spool(String path) {
+        file = new File(path);
+    }
+
+    /**
+     * Append entries and sync them to disk
+     * @param entries The entries to append
+     * @throws IOException If the entries couldn't be written
+     */
+    synchronized void append(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) return;
+        StringBuilder text = new StringBuilder();
+        for (Entry entry : entries) text.append(entry.encode());
+        if (channel == null)
+            channel = new FileOutputStream(file, true).getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+    }
+
+    /**
+     * @return All entries in the order they were appended
+     * @throws IOException If the file couldn't be read
+     */
+    synchronized List<Entry> read() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) return entries;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.decode(line);
+                if (entry != null) entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Replace all entries, for example once some of them were written to the database
+     * @param entries The entries that are still pending
+     * @throws IOException If the file couldn't be written
+     */
+    synchronized void rewrite(List<Entry> entries) throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (entries.isEmpty()) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            StringBuilder text = new StringBuilder();
+            for (Entry entry : entries) text.append(entry.encode());
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException err) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** A changed field of a player */
+    static class Entry {
+        final String uuid;
+        final String field;
+        // The version of the row the change was based on, or -1 if it wasn't read from the database
+        final long version;
+        // The value of the field the change was based on, or null
+        final String base;
+
+        Entry(String uuid, String field, long version, String base) {
+            this.uuid = uuid;
+            this.field = field;
+            this.version = version;
+            this.base = base;
+        }
+
+        String encode() {
+            return escape(uuid) + "\t" + escape(field) + "\t" + version + "\t" + (base == null ? "\\0" : escape(base)) + "\n";
+        }
+
+        static Entry decode(String line) {
+            String[] parts = line.split("\t", -1);
+            if (parts.length != 4) return null;
+            try {
+                return new Entry(unescape(parts[0]), unescape(parts[1]), Long.parseLong(parts[2]), parts[3].equals("\\0") ? null : unescape(parts[3]));
+            } catch (IllegalArgumentException err) {
+                return null;
+            }
+        }
+
+        private static String escape(String text) {
+            return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        private static String unescape(String text) {
+            StringBuilder result = new StringBuilder(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c != '\\') {
+                    result.append(c);
+                    continue;
+                }
+                if (++i == text.length()) throw new IllegalArgumentException("Incomplete escape");
+                switch (text.charAt(i)) {
+                    case 't': result.append('\t'); break;
+                    case 'n': result.append('\n'); break;
+                    case 'r': result.append('\r'); break;
+                    case '\\': result.append('\\'); break;
+                    default: throw new IllegalArgumentException("Unknown escape");
+                }
+            }
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package tsrcore;
+
+import arc.struct.ObjectMap;
+
+import java.io.IOException;
+
+/**
+ * <p>Defines how a {@link DataStorage} is persisted.</p>
+ * <p>All methods are called while the data storage is locked, except for {@link #store(ObjectMap)},
+ * which gets its own snapshot of the data and may run on a background thread.</p>
+ */
+public interface StorageBackend {
+    /**
+     * @return The name of the storage, used in log messages
+     */
+    String name();
+
+    /**
+     * Load all the stored data into the map
+     * @param storage The map to load the data into
+     * @throws IOException If the data couldn't be read
+     */
+    void load(ObjectMap<String, String> storage) throws IOException;
+
+    /**
+     * Checked after {@link #load(ObjectMap)}, to store the loaded data right away, for example after migrating it to a new layout
+     * @return Whether the data has to be stored before it is in the format of this backend
+     */
+    default boolean needsStore() {
+        return false;
+    }
+
+    /**
+     * Check if the stored data was changed by something else since it was last loaded or stored,
+     * for example because the file was edited manually.
+     * @return Whether the data should be loaded again
+     */
+    default boolean modified() {
+        return true;
+    }
+
+    /**
+     * @return Whether values are read one by one using {@link #read(String)} instead of all being loaded up front
+     */
+    default boolean readsOnDemand() {
+        return false;
+    }
+
+    /**
+     * Read a single value. Only used if {@link #readsOnDemand()} is true
+     * @param key The name of the value
+     * @return The value, or null if it isn't stored
+     * @throws IOException If the value couldn't be read
+     */
+    default String read(String key) throws IOException {
+        return null;
+    }
+
+    /**
+     * Read every stored value, even if the backend normally reads them on demand
+     * @param storage The map to put all values into
+     * @throws IOException If the data couldn't be read
+     */
+    default void readAll(ObjectMap<String, String> storage) throws IOException {
+        load(storage);
+    }
+
+    /**
+     * Persist a single changed value
+     * @param key The name of the value
+     * @param value The new value
+     * @return Whether the change is persisted. If not, a full {@link #store(ObjectMap)} is requested
+     * @throws IOException If the value couldn't be written
+     */
+    boolean write(String key, String value) throws IOException;
+
+    /**
+     * Called right before the snapshot for {@link #store(ObjectMap)} is taken.
+     * Every {@link #write(String, String)} after this is not part of the snapshot.
+     * @throws IOException If the backend couldn't prepare the store
+     */
+    default void beginStore() throws IOException {}
+
+    /**
+     * Persist all the data
+     * @param storage A snapshot of all the data
+     * @throws IOException If the data couldn't be written
+     */
+    void store(ObjectMap<String, String> storage) throws IOException;
+
+    /**
+     * @return The amount of bytes written by the last {@link #store(ObjectMap)}, or 0 if nothing was rewritten
+     */
+    default long storedBytes() {
+        return 0;
+    }
+}
@@ -1,5 +1,6 @@
 package tsrcore;
 
+import arc.ApplicationListener;
 import arc.Core;
 import arc.Events;
 import arc.files.Fi;
@@ -8,7 +9,6 @@ import arc.util.CommandHandler;
 import arc.util.Log;
 import arc.util.Threads;
 import arc.util.Timer;
-import at.favre.lib.crypto.bcrypt.BCrypt;
 import mindustry.Vars;
 import mindustry.core.GameState;
 import mindustry.game.EventType;
@@ -19,7 +19,17 @@ import mindustry.io.SaveIO;
 import mindustry.mod.Plugin;
 import mindustry.net.Packets;
 
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -41,7 +51,15 @@ public class TSRCore extends Plugin {
     public DataStorage allowedIps;
     public DataStorage passwords;
     public Money money;
+    public PasswordHasher passwordHasher;
+    public RateLimiter authLimiter;
+    private final Metrics.Counter authThrottled = Metrics.global.counter("tsrcore_auth_throttled_total", "Password attempts rejected because of too many recent attempts");
+    /** @deprecated Use {@link PlayerSession#verified()} instead, which doesn't need a scan */
+    @Deprecated
     public ArrayList<Player> notVerified = new ArrayList<>();
+    /** @deprecated Use {@link PlayerSession#loading()} instead, which doesn't need a scan */
+    @Deprecated
+    public ArrayList<Player> loading = new ArrayList<>();
 
     public Commands commands;
     private final ObjectMap<Integer, OptionMenu> optionMenus = new ObjectMap<>();
@@ -49,9 +67,25 @@ public class TSRCore extends Plugin {
     private int lastMenuId;
     private int lastTextInputId;
     private final ObjectMap<Integer, Consumer<String>> textInputs = new ObjectMap<>();
+    // Uuids of players whose password is being hashed or checked. Only used on the main thread
+    private final Set<String> checkingPasswords = new HashSet<>();
+    // Set while TSR Core fires the ReloadEvent itself, so its own listener doesn't reload again. Only used on the main thread
+    private boolean firingReload;
+    private final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "TSRCore-Reload");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public TSRCore() {
+        Events.on(TSRCoreEvents.ReloadEvent.class, e -> {
+            // Other plugins fire the event to make TSR Core reload its files as well
+            if (!firingReload) reload(null);
+        });
         Events.on(EventType.ServerLoadEvent.class, e -> {
+            // All plugins registered their fields by now, so the missing columns are added at once
+            if (settings.getBool("useDB"))
+                database.applySchema();
             if (settings.getBool("rebooting", false)) {
                 settings.set("rebooting", false);
 
@@ -76,64 +110,89 @@ public class TSRCore extends Plugin {
                 textInputs.get(e.textInputId).accept(e.text);
             }
         });
-        Events.on(TSRCoreEvents.ReloadEvent.class, e -> {
-            if (!settings.getBool("useDB")) {
-                money.load();
-            }
-            settings.load();
-            roles.load();
-            players.reload();
-            commands.load();
-        });
         Events.on(EventType.MenuOptionChooseEvent.class, e -> {
             if (optionMenus.containsKey(e.menuId)) {
                 optionMenus.get(e.menuId).run(e);
             }
         });
         Events.on(EventType.PlayerConnect.class, e -> {
-            if (settings.getBool("useDB"))
-                database.playerJoin(e.player.uuid());
-            if (Objects.equals(passwords.getString(e.player.uuid(), ""), "")) {
-                Call.infoToast(e.player.con(), "[red]You have not registered. Register now with /register to prevent your account from being stolen", 10);
-                Call.infoMessage(e.player.con(), "[red]You have not registered. Register now with /register to prevent your account from being stolen");
-                e.player.sendMessage("[red]You have not registered. Register now with /register to prevent your account from being stolen");
-            } else {
-                if (!Objects.equals(ips.getString(e.player.uuid()), e.player.ip())) {
-                    ArrayList<String> allowed = new ArrayList<>(Arrays.asList(allowedIps.getString(e.player.uuid(), "").split(",")));
-                    if (!allowed.contains(e.player.ip())) {
-                        Call.infoMessage(e.player.con(), "Your IP has changed. /login now to verify the new IP");
-                        notVerified.add(e.player);
-                        players.add(e.player, settings.getInt("defaultRoleID"));
-                        return;
-                    }
-                }
+            for (DataStorage storage : playerStorages()) storage.pin(e.player.uuid());
+            PlayerSession session = players.connect(e.player);
+            if (settings.getBool("useDB")) {
+                session.loading(true);
+                loading.add(e.player);
+                database.loadPlayer(e.player.uuid()).thenRun(() -> {
+                    // The player left before the data was loaded
+                    if (players.session(e.player) != session) return;
+                    session.loading(false);
+                    loading.remove(e.player);
+                    playerLoaded(e.player);
+                });
+                return;
             }
-            players.add(e.player, settings.getInt("defaultRoleID"));
-            Events.fire(new TSRCoreEvents.PlayerVerifyEvent(e.player));
+            playerLoaded(e.player);
         });
         Events.on(EventType.PlayerLeave.class, e -> {
-            if (settings.getBool("useDB"))
+            PlayerSession session = players.session(e.player);
+            loading.remove(e.player);
+            // Data that isn't loaded yet must not overwrite the database
+            if (session != null && !session.loading() && settings.getBool("useDB"))
                 database.save(e.player);
             players.remove(e.player);
             notVerified.remove(e.player);
+            for (DataStorage storage : playerStorages()) storage.unpin(e.player.uuid());
         });
     }
 
+    /**
+     * Verify a player once their data is loaded
+     */
+    private void playerLoaded(Player player) {
+        boolean verified = true;
+        if (Objects.equals(passwords.getString(player.uuid(), ""), "")) {
+            Call.infoToast(player.con(), "[red]You have not registered. Register now with /register to prevent your account from being stolen", 10);
+            Call.infoMessage(player.con(), "[red]You have not registered. Register now with /register to prevent your account from being stolen");
+            player.sendMessage("[red]You have not registered. Register now with /register to prevent your account from being stolen");
+        } else if (!Objects.equals(ips.getString(player.uuid()), player.ip())) {
+            ArrayList<String> allowed = new ArrayList<>(Arrays.asList(allowedIps.getString(player.uuid(), "").split(",")));
+            if (!allowed.contains(player.ip())) {
+                Call.infoMessage(player.con(), "Your IP has changed. /login now to verify the new IP");
+                notVerified.add(player);
+                players.session(player).verified(false);
+                verified = false;
+            }
+        }
+        players.add(player, settings.getInt("defaultRoleID"));
+        if (verified)
+            Events.fire(new TSRCoreEvents.PlayerVerifyEvent(player));
+        Events.fire(new TSRCoreEvents.PlayerDataLoadedEvent(player));
+    }
+
     @Override
     public void registerClientCommands(CommandHandler handler) {
-        handler.<Player>register("tsrcore", "", "Info about the TSR Core Library", (args, player) -> player.sendMessage("TSR-Core Library v"+ versionString));
+        handler.<Player>register("tsrcore", "[stats]", "Info about the TSR Core Library", (args, player) -> {
+            if (args.length == 0 || !args[0].equals("stats")) {
+                player.sendMessage("TSR-Core Library v"+ versionString);
+                return;
+            }
+            if (!canUseCommand(player, "stats")) {
+                player.sendMessage("[red]\uE815 You are not allowed to use this command.");
+                return;
+            }
+            List<String> lines = Metrics.global.summary();
+            player.sendMessage(lines.isEmpty() ? "No stats recorded yet" : "[accent]" + String.join("\n[accent]", lines).replace(": ", ":[] "));
+        });
         handler.<Player>register("reload", "", "Reload various files after manual changes", (args, player) -> {
             if (!canUseCommand(player, "reload")) {
                 player.sendMessage("[red]\uE815 You are not allowed to use this command.");
                 return;
             }
             player.sendMessage("Reloading!");
-
-            Events.fire(new TSRCoreEvents.ReloadEvent());
-
-            player.sendMessage("[green]Reloaded!");
+            // Other plugins may have files to reload as well
+            reload(() -> player.sendMessage("[green]Reloaded!"), true);
         });
         handler.<Player>register("register", "<password> <repeat-password>", "Register your account with a password. Required to save user data", (args, player) -> {
+            if (stillLoading(player)) return;
             if (!Objects.equals(passwords.getString(player.uuid(), ""), "")) {
                 player.sendMessage("[red]\uE815 This account is already registered");
                 return;
@@ -143,12 +202,28 @@ public class TSRCore extends Plugin {
                 return;
             }
 
-            ips.set(player.uuid(), player.ip());
-            String bcryptHashString = BCrypt.withDefaults().hashToString(12, args[0].toCharArray());
-            passwords.set(player.uuid(), bcryptHashString);
-            player.sendMessage("[green]\uE800 Registered!");
+            if (throttled(player)) return;
+            if (!checkingPasswords.add(player.uuid())) {
+                player.sendMessage("[red]\uE815 Your password is still being checked");
+                return;
+            }
+            passwordHasher.hash(args[0]).whenComplete((bcryptHashString, err) -> {
+                checkingPasswords.remove(player.uuid());
+                if (err != null) {
+                    player.sendMessage("[red]\uE815 The server is busy, try again in a moment");
+                    return;
+                }
+                if (!Objects.equals(passwords.getString(player.uuid(), ""), "")) {
+                    player.sendMessage("[red]\uE815 This account is already registered");
+                    return;
+                }
+                ips.set(player.uuid(), player.ip());
+                passwords.set(player.uuid(), bcryptHashString);
+                player.sendMessage("[green]\uE800 Registered!");
+            });
         });
         handler.<Player>register("login", "<password>", "Allow a new ip for your account", (args, player) -> {
+            if (stillLoading(player)) return;
             if (Objects.equals(passwords.getString(player.uuid(), ""), "")) {
                 player.sendMessage("[red]\uE815 This account is not registered. Strongly consider doing so now using /register");
                 return;
@@ -160,15 +235,31 @@ public class TSRCore extends Plugin {
                 return;
             }
 
-            if (BCrypt.verifyer().verify(args[0].toCharArray(), passwords.getString(player.uuid()).toCharArray()).verified) {
+            if (throttled(player)) return;
+            if (!checkingPasswords.add(player.uuid())) {
+                player.sendMessage("[red]\uE815 Your password is still being checked");
+                return;
+            }
+            passwordHasher.verify(args[0], passwords.getString(player.uuid())).whenComplete((verified, err) -> {
+                checkingPasswords.remove(player.uuid());
+                if (err != null) {
+                    player.sendMessage("[red]\uE815 The server is busy, try again in a moment");
+                    return;
+                }
+                if (!verified) {
+                    player.sendMessage("[red]\uE815 Invalid password");
+                    return;
+                }
+                // The allowed ips may have changed while the password was checked
+                ArrayList<String> current = new ArrayList<>(Arrays.asList(allowedIps.getString(player.uuid(), "").split(",")));
+                if (current.contains(player.ip())) return;
                 player.sendMessage("[green]\uE800 Logged in!");
-                allowed.add(player.ip());
-                allowedIps.set(player.uuid(), allowed.stream().map(Object::toString).collect(Collectors.joining(",")));
+                current.add(player.ip());
+                allowedIps.set(player.uuid(), current.stream().map(Object::toString).collect(Collectors.joining(",")));
                 notVerified.remove(player);
+                players.verify(player);
                 Events.fire(new TSRCoreEvents.PlayerVerifyEvent(player));
-            } else {
-                player.sendMessage("[red]\uE815 Invalid password");
-            }
+            });
         });
         handler.<Player>register("reboot", "Reboot the server", (args, player) -> {
             if (!canUseCommand(player, "reboot")) {
@@ -183,6 +274,8 @@ public class TSRCore extends Plugin {
                 Core.settings.put("startCommands", "");
                 Core.settings.forceSave();
                 Vars.netServer.kickAll(Packets.KickReason.serverRestarting);
+                DataStorage.flushAll();
+                database.disconnect();
 
                 Threads.throwAppException(new java.lang.Exception("Restarting..."));
             });
@@ -210,10 +303,13 @@ public class TSRCore extends Plugin {
                 new OptionMenu("Choose a role", "Choose a role to set " + p.name + "'s role to", options, res -> {
                     if (res == null) return;
                     Role newRole = roleList.get(Integer.parseInt(res));
-                    players.set(p, newRole.id);
-                    p.sendMessage("Your role has been updated to " + roleList.get(Integer.parseInt(res)).name);
-                    Events.fire(new TSRCoreEvents.PlayerRoleChangeEvent(p, newRole));
-                    players.reload();
+                    // The sessions are only used on the main thread
+                    Core.app.post(() -> {
+                        players.set(p, newRole.id);
+                        p.sendMessage("Your role has been updated to " + newRole.name);
+                        Events.fire(new TSRCoreEvents.PlayerRoleChangeEvent(p, newRole));
+                        players.reload();
+                    });
                 }).open(player);
             });
         });
@@ -224,37 +320,199 @@ public class TSRCore extends Plugin {
         if (!pluginDir.exists()) pluginDir.mkdirs();
 
         settings = new Settings("./config/mods/tsrcore/settings.properties");
-        playerRoles = new DataStorage("./config/mods/tsrcore/playerRoles.properties");
-        passwords = new DataStorage("./config/mods/tsrcore/passwords.properties");
-        ips = new DataStorage("./config/mods/tsrcore/ips.properties");
-        allowedIps = new DataStorage("./config/mods/tsrcore/allowedIps.properties");
+        settings.register("storageFlushInterval", 5);
+        settings.register("storageFlushThreshold", 100);
+        settings.register("storageBackend", "journal");
+        settings.register("storageShards", 16);
+        settings.register("storageCacheSize", 0);
+        settings.register("autoReload", false);
+        settings.register("moneyLedger", true);
+        settings.register("metricsInterval", 60);
+        settings.register("bcryptCost", 12);
+        settings.register("bcryptThreads", 2);
+        passwordHasher = new PasswordHasher(settings.getInt("bcryptThreads"), settings.getInt("bcryptCost"), 32);
+        settings.register("authAttemptsPerMinute", 5);
+        settings.register("authBurst", 3);
+        authLimiter = new RateLimiter(settings.getInt("authAttemptsPerMinute"), settings.getInt("authBurst"));
+        Metrics.global.writeEvery("./config/mods/tsrcore/metrics.prom", settings.getInt("metricsInterval"));
+
+        playerRoles = new DataStorage(createBackend("playerRoles"));
+        passwords = new DataStorage(createBackend("passwords"));
+        ips = new DataStorage(createBackend("ips"));
+        allowedIps = new DataStorage(createBackend("allowedIps"));
         roles = new Roles("./config/mods/tsrcore/roles.properties");
         commands = new Commands("./config/mods/tsrcore/commandPermissions.properties");
-        money = new Money("./config/mods/tsrcore/money.properties");
+        money = new Money(createBackend("money"));
+        if (settings.getBool("moneyLedger"))
+            money.ledger(new Ledger("./config/mods/tsrcore/money.ledger"));
         players = new Players(this);
 
-        database = new Database(settings.getString("dbConnectString"));
+        float flushInterval = settings.getInt("storageFlushInterval");
+        int flushThreshold = settings.getInt("storageFlushThreshold");
+        int cacheSize = settings.getInt("storageCacheSize");
+        for (DataStorage storage : playerStorages()) {
+            storage.writeBehind(flushInterval, flushThreshold);
+            if (cacheSize > 0) storage.cacheLimit(cacheSize);
+        }
+        Core.app.addListener(new ApplicationListener() {
+            @Override
+            public void dispose() {
+                DataStorage.flushAll();
+                if (database != null) database.disconnect();
+            }
+        });
+
+        settings.register("dbBackend", "mysql");
+        settings.register("dbPoolSize", 4);
+        settings.register("dbIdleTimeout", 300);
+        DatabaseBackend databaseBackend = Objects.equals(settings.getString("dbBackend"), "h2")
+                ? new H2Backend("./config/mods/tsrcore/players")
+                : new MySqlBackend();
+        settings.register("dbCacheSize", 1000);
+        settings.register("dbCacheTime", 60);
+        settings.register("dbPollInterval", 5);
+        settings.register("dbTimeout", 5);
+        settings.register("dbFailureThreshold", 3);
+        settings.register("dbRetryTime", 30);
+        database = new Database(settings.getString("dbConnectString"), databaseBackend)
+                .cache(settings.getInt("dbCacheSize"), settings.getInt("dbCacheTime"))
+                .pollInterval(settings.getInt("dbPollInterval"))
+                .breaker(settings.getInt("dbTimeout"), settings.getInt("dbFailureThreshold"), settings.getInt("dbRetryTime"))
+                .spool("./config/mods/tsrcore/database.spool");
 
         if (settings.getBool("useDB") != null && settings.getBool("useDB")) {
-            database.connect();
+            database.connect(settings.getInt("dbPoolSize"), settings.getInt("dbIdleTimeout"));
             Timer.schedule(() -> database.save(), 0, 60);
         }
 
         database.addPlayerFieldInt("role", playerRoles, settings.getInt("defaultRoleID"));
         database.addPlayerFieldInt("money", money, 0);
+        // Money earned on different servers at the same time is added up
+        database.conflictPolicy("money", ConflictPolicy.ADDITIVE);
+        database.addIndex("money");
         database.addPlayerFieldString("ip", ips, "");
         database.addPlayerFieldString("allowedIps", allowedIps, "");
         database.addPlayerFieldString("password", passwords, "");
 
+        if (settings.getBool("autoReload")) watchFiles(pluginDir);
+
         commands.register("reload", 1);
         commands.register("setperms", 1);
         commands.register("reboot", 1);
+        commands.register("stats", 1);
 
         settings.register("defaultRoleID", 0);
         settings.register("useDB", false);
         settings.register("dbConnectString", "");
     }
 
+    /**
+     * <p>Reload all files that were changed since they were last loaded.</p>
+     * <p>Changed files are read on a background thread, and only the changed values are applied at once on the main thread.
+     * After that, the {@link TSRCoreEvents.ReloadEvent} is fired. If no file changed, nothing is applied and no event is fired.</p>
+     * @param done Code to run on the main thread once everything is reloaded, or null
+     */
+    public void reload(Runnable done) {
+        reload(done, false);
+    }
+
+    /**
+     * Reload all files that were changed since they were last loaded
+     * @param done Code to run on the main thread once everything is reloaded, or null
+     * @param fireEvent Whether to fire the {@link TSRCoreEvents.ReloadEvent} even if none of the files of TSR Core changed,
+     *                  so other plugins reload their files, like for the /reload command
+     */
+    public void reload(Runnable done, boolean fireEvent) {
+        reloadExecutor.execute(() -> {
+            List<DataStorage.Change> settingChanges = settings.readChanges();
+            List<DataStorage.Change> commandChanges = commands.readChanges();
+            List<DataStorage.Change> moneyChanges = settings.getBool("useDB") ? Collections.emptyList() : money.readChanges();
+            List<Role> newRoles = roles.modified() ? roles.read() : null;
+
+            boolean changed = !settingChanges.isEmpty() || !commandChanges.isEmpty() || !moneyChanges.isEmpty() || newRoles != null;
+            if (!changed && !fireEvent) {
+                if (done != null) Core.app.post(done);
+                return;
+            }
+            Core.app.post(() -> {
+                settings.applyChanges(settingChanges);
+                commands.applyChanges(commandChanges);
+                money.applyChanges(moneyChanges);
+                if (newRoles != null) {
+                    roles.set(newRoles);
+                    players.reload();
+                }
+                firingReload = true;
+                try {
+                    Events.fire(new TSRCoreEvents.ReloadEvent());
+                } finally {
+                    firingReload = false;
+                }
+                if (done != null) done.run();
+            });
+        });
+    }
+
+    /**
+     * <p>Reload automatically whenever a config file in the directory changes.</p>
+     * <p>Only the settings, roles and command permissions are watched, since the data files in the same directory
+     * are written by TSR Core itself all the time.</p>
+     * @param directory The directory to watch
+     */
+    private void watchFiles(Fi directory) {
+        Set<String> watched = new HashSet<>(Arrays.asList("settings.properties", "roles.properties", "commandPermissions.properties"));
+        Thread watcher = new Thread(() -> {
+            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                directory.file().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    do {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.context() instanceof Path && watched.contains(((Path) event.context()).getFileName().toString()))
+                                changed = true;
+                        }
+                        key.reset();
+                        // Wait for more changes, so a burst of writes only reloads once
+                    } while ((key = changed ? watchService.poll(1, TimeUnit.SECONDS) : watchService.poll()) != null);
+                    if (changed) reload(null);
+                }
+            } catch (IOException err) {
+                Log.err("Failed to watch files for changes", err);
+            } catch (InterruptedException ignored) {
+                // Stopped
+            }
+        }, "TSRCore-FileWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @return The data storages that hold a value per player
+     */
+    private DataStorage[] playerStorages() {
+        return new DataStorage[]{playerRoles, passwords, ips, allowedIps, money};
+    }
+
+    /**
+     * Create the storage backend for a player data file, as configured by the storageBackend setting
+     * @param name The name of the data file
+     * @return The backend for the file
+     */
+    private StorageBackend createBackend(String name) {
+        String path = "./config/mods/tsrcore/" + name;
+        switch (settings.getString("storageBackend")) {
+            case "properties":
+                return new PropertiesBackend(path + ".properties");
+            case "mapped":
+                return new MappedBackend(path + ".bin", path + ".properties");
+            case "sharded":
+                return new ShardedBackend(path, settings.getInt("storageShards"), path + ".properties");
+            default:
+                return new JournalBackend(path + ".properties");
+        }
+    }
+
     /**
      * @return Version of the plugin as a String
      */
@@ -269,11 +527,38 @@ public class TSRCore extends Plugin {
      * @return Whether the player should be able to use the command
      */
     public boolean canUseCommand(Player player, String commandName) {
-        if (notVerified.contains(player)) {
+        PlayerSession session = players.session(player);
+        if (session == null) return false;
+        if (stillLoading(player)) return false;
+        if (!session.verified()) {
             player.sendMessage("[red]\uE815 You can't use this command because you haven't verified your ip with /login");
             return false;
         }
-        return players.get(player).canUseCommand(commandName, commands);
+        return session.canUseCommand(commandName, commands);
+    }
+
+    /**
+     * Check if a player tried too many passwords recently, from their uuid or ip, and tell them to wait if they did
+     * @param player The player
+     * @return Whether the player has to wait before trying again
+     */
+    public boolean throttled(Player player) {
+        if (authLimiter.tryAcquire("uuid:" + player.uuid()) && authLimiter.tryAcquire("ip:" + player.ip())) return false;
+        authThrottled.increment();
+        player.sendMessage("[red]\uE815 Too many attempts, try again in a minute");
+        return true;
+    }
+
+    /**
+     * Check if the data of a player is still being loaded from the database, and tell them to wait if it is
+     * @param player The player to check
+     * @return Whether the data is still loading
+     */
+    public boolean stillLoading(Player player) {
+        PlayerSession session = players.session(player);
+        if (session == null || !session.loading()) return false;
+        player.sendMessage("[red]\uE815 Your data is still loading, try again in a moment");
+        return true;
     }
 
     /**
@@ -3,7 +3,7 @@ package tsrcore;
 import mindustry.gen.Player;
 
 public class TSRCoreEvents {
-    /** Fired when the /reload command is used */
+    /** Fired after the files were reloaded, either by the /reload command or automatically */
     public static class ReloadEvent {}
 
     /** Fired when the role of a player changes */
@@ -24,4 +24,13 @@ public class TSRCoreEvents {
                 this.player = player;
         }
     }
+
+    /** Fired once the data of a joining player is loaded, from the database if it is enabled */
+    public static class PlayerDataLoadedEvent {
+        public final Player player;
+
+        public PlayerDataLoadedEvent(Player player) {
+            this.player = player;
+        }
+    }
 }
@@ -0,0 +1,52 @@
+package tsrcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Merging the changes of a player that joined while the database was unavailable, and had no data on this server
+ */
+public class ConflictPolicyTest {
+    private static final String hash = "$2a$12$remotehashremotehashremotehashremotehashremotehashrem";
+
+    @Test
+    public void defaultPasswordKeepsRemoteHash() {
+        assertEquals(hash, ConflictPolicy.OVERWRITE.resolveUnread(FieldType.STRING, "", null, "", hash));
+    }
+
+    @Test
+    public void passwordRegisteredDuringOutageKeepsRemoteHash() {
+        assertEquals(hash, ConflictPolicy.OVERWRITE.resolveUnread(FieldType.STRING, "$2a$12$local", null, "", hash));
+    }
+
+    @Test
+    public void defaultRoleKeepsRemoteRole() {
+        assertEquals(2, ConflictPolicy.OVERWRITE.resolveUnread(FieldType.INT, 0, null, 0, 2));
+    }
+
+    @Test
+    public void localValueIsWrittenIfRemoteIsDefault() {
+        assertEquals("1.2.3.4", ConflictPolicy.OVERWRITE.resolveUnread(FieldType.STRING, "1.2.3.4", null, "", ""));
+    }
+
+    @Test
+    public void knownLocalValueOverwrites() {
+        assertEquals("5.6.7.8", ConflictPolicy.OVERWRITE.resolveUnread(FieldType.STRING, "5.6.7.8", "1.2.3.4", "", "1.2.3.4"));
+    }
+
+    @Test
+    public void keepRemoteKeepsRemote() {
+        assertEquals(hash, ConflictPolicy.KEEP_REMOTE.resolveUnread(FieldType.STRING, "5.6.7.8", "1.2.3.4", "", hash));
+    }
+
+    @Test
+    public void moneyEarnedDuringOutageIsAdded() {
+        assertEquals(150, ConflictPolicy.ADDITIVE.resolveUnread(FieldType.INT, 50, null, 0, 100));
+    }
+
+    @Test
+    public void moneyBasedOnLocalValueIsAdded() {
+        assertEquals(130, ConflictPolicy.ADDITIVE.resolveUnread(FieldType.INT, 50, 20, 0, 100));
+    }
+}
@@ -0,0 +1,163 @@
+package tsrcore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncing player data with an in-memory {@link H2Backend} database, so the SQL of {@link Database} is run against H2
+ */
+public class H2DatabaseTest {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String url;
+    // Keeps the in-memory database alive, and is used to read and change rows like another server
+    private Connection connection;
+    private Database database;
+    private IntDataStorage money;
+    private DataStorage nickname;
+    private DataStorage admin;
+    private DataStorage playtime;
+
+    @Before
+    public void openDatabase() throws SQLException {
+        url = "jdbc:h2:mem:tsrcore" + databases.incrementAndGet();
+        connection = DriverManager.getConnection(url);
+    }
+
+    @After
+    public void closeDatabase() throws SQLException {
+        if (database != null) database.disconnect();
+        connection.close();
+    }
+
+    private void connect(float pollInterval) {
+        database = new Database(url, new H2Backend(new File(folder.getRoot(), "players").getPath())).pollInterval(pollInterval);
+        database.connect(2, 300);
+        money = new IntDataStorage(new File(folder.getRoot(), "money.properties").getPath());
+        nickname = new DataStorage(new File(folder.getRoot(), "nickname.properties").getPath());
+        admin = new DataStorage(new File(folder.getRoot(), "admin.properties").getPath());
+        playtime = new DataStorage(new File(folder.getRoot(), "playtime.properties").getPath());
+        database.addPlayerFieldInt("money", money, 10);
+        database.addPlayerFieldString("nickname", nickname, "");
+        database.addPlayerFieldBool("admin", admin, false);
+        database.addPlayerFieldDouble("playtime", playtime, 0);
+        database.addIndex("money");
+    }
+
+    private void save(String uuid) throws Exception {
+        database.save(Collections.singletonList(uuid)).get();
+    }
+
+    private void assertRow(String uuid, long version, int money, String nickname) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT version, money, nickname FROM players WHERE uuid = ?")) {
+            statement.setString(1, uuid);
+            try (ResultSet res = statement.executeQuery()) {
+                assertTrue("The player wasn't written", res.next());
+                assertEquals(version, res.getLong(1));
+                assertEquals(money, res.getInt(2));
+                assertEquals(nickname, res.getString(3));
+            }
+        }
+    }
+
+    private void update(String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+
+    @Test
+    public void schemaIsCreated() throws Exception {
+        connect(0);
+        database.applySchema().get();
+        Set<String> columns = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet res = statement.executeQuery("SELECT * FROM players WHERE 1 = 0")) {
+            ResultSetMetaData metaData = res.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) columns.add(metaData.getColumnName(i).toLowerCase(Locale.ROOT));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("uuid", "version", "money", "nickname", "admin", "playtime")), columns);
+
+        // Applying it again, like after a restart, doesn't add anything
+        database.disconnect();
+        connect(0);
+        database.applySchema().get();
+        database.playerJoin("a");
+        assertEquals("10", money.getString("a"));
+    }
+
+    @Test
+    public void newPlayerIsInsertedAndUpdated() throws Exception {
+        connect(0);
+        database.playerJoin("a");
+        assertEquals("10", money.getString("a"));
+        nickname.set("a", "local");
+        save("a");
+        assertRow("a", 1, 10, "local");
+
+        money.set("a", 50);
+        save("a");
+        assertRow("a", 2, 50, "local");
+
+        // Loaded from the database on the next join, not from the local file
+        money.set("a", 0);
+        database.playerJoin("a");
+        assertEquals(50, money.getInt("a", 0));
+        assertEquals("local", nickname.getString("a"));
+    }
+
+    @Test
+    public void rowWrittenByAnotherServerIsMerged() throws Exception {
+        connect(0);
+        database.playerJoin("a");
+        save("a");
+        update("UPDATE players SET nickname = 'remote', version = version + 1 WHERE uuid = 'a'");
+
+        // The versioned update finds nothing, so the row is locked and merged
+        money.set("a", 50);
+        save("a");
+        assertRow("a", 3, 50, "remote");
+        assertEquals("remote", nickname.getString("a"));
+    }
+
+    @Test
+    public void changesOfAnotherServerArePolled() throws Exception {
+        connect(0.05f);
+        database.playerJoin("a");
+        save("a");
+        update("UPDATE players SET money = 99, admin = TRUE, version = version + 1 WHERE uuid = 'a'");
+
+        long end = System.currentTimeMillis() + 5000;
+        while (!admin.getBool("a", false) && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertEquals(99, money.getInt("a", 0));
+        assertEquals(true, admin.getBool("a", false));
+
+        // Polled values aren't written back as local changes
+        save("a");
+        assertRow("a", 2, 99, "");
+    }
+}
@@ -0,0 +1,84 @@
+package tsrcore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The parsed int values of an {@link IntDataStorage}, which must always match the stored text
+ */
+public class IntDataStorageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path() {
+        return new File(folder.getRoot(), "ints.properties").getPath();
+    }
+
+    @Test
+    public void setValuesAreRead() {
+        IntDataStorage storage = new IntDataStorage(path());
+        storage.set("a", 5);
+        assertEquals(5, storage.getInt("a", 0));
+        storage.set("a", "7");
+        assertEquals(Integer.valueOf(7), storage.getInt("a"));
+        assertNull(storage.getInt("missing"));
+    }
+
+    @Test
+    public void missingValueGetsDefault() {
+        IntDataStorage storage = new IntDataStorage(path());
+        assertEquals(3, storage.getInt("a", 3));
+        assertEquals("3", storage.getString("a"));
+        assertEquals(3, storage.getInt("a", 9));
+    }
+
+    @Test
+    public void nonIntValueIsNotCached() {
+        IntDataStorage storage = new IntDataStorage(path());
+        storage.set("a", 5);
+        storage.set("a", "");
+        assertEquals("", storage.getString("a"));
+        storage.set("a", 6);
+        assertEquals(6, storage.getInt("a", 0));
+    }
+
+    @Test
+    public void reloadReplacesCachedValues() {
+        IntDataStorage storage = new IntDataStorage(path());
+        storage.set("a", 5);
+        IntDataStorage other = new IntDataStorage(path());
+        other.set("a", 8);
+        assertEquals(5, storage.getInt("a", 0));
+        storage.load();
+        assertEquals(8, storage.getInt("a", 0));
+    }
+
+    @Test
+    public void concurrentUpdatesAreNotLost() throws InterruptedException {
+        IntDataStorage storage = new IntDataStorage(new JournalBackend(path()));
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    String key = "key" + (i % 10);
+                    synchronized (storage.lockFor(key)) {
+                        storage.set(key, storage.getInt(key, 0) + 1);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        for (int i = 0; i < 10; i++) assertEquals(400, storage.getInt("key" + i, 0));
+    }
+}
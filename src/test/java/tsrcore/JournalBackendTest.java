@@ -0,0 +1,123 @@
+package tsrcore;
+
+import arc.struct.ObjectMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replaying the journal of a {@link JournalBackend}, including journals that were damaged by a crash
+ */
+public class JournalBackendTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path() {
+        return new File(folder.getRoot(), "data.properties").getPath();
+    }
+
+    private JournalBackend writeRecords() throws IOException {
+        JournalBackend backend = new JournalBackend(path(), 2f, 0);
+        backend.load(new ObjectMap<>());
+        backend.write("a", "1");
+        backend.write("b", "2");
+        backend.write("a", "3");
+        return backend;
+    }
+
+    private ObjectMap<String, String> reload() throws IOException {
+        ObjectMap<String, String> data = new ObjectMap<>();
+        new JournalBackend(path(), 2f, 0).load(data);
+        return data;
+    }
+
+    @Test
+    public void changesAreReplayed() throws IOException {
+        writeRecords();
+        ObjectMap<String, String> data = reload();
+        assertEquals("3", data.get("a"));
+        assertEquals("2", data.get("b"));
+    }
+
+    @Test
+    public void largeJournalRequestsCompaction() throws IOException {
+        JournalBackend backend = new JournalBackend(path(), 2f, 0);
+        ObjectMap<String, String> data = new ObjectMap<>();
+        backend.load(data);
+        int writes = 0;
+        while (true) {
+            String value = "value" + writes;
+            data.put("key" + (writes % 100), value);
+            writes++;
+            if (!backend.write("key" + ((writes - 1) % 100), value)) break;
+            assertTrue("The journal never asked to be compacted", writes < 100_000);
+        }
+
+        backend.beginStore();
+        backend.store(data);
+        File journal = new File(path() + ".journal");
+        assertFalse(journal.exists() && journal.length() > 0);
+        assertFalse(new File(path() + ".journal.old").exists());
+        ObjectMap<String, String> loaded = reload();
+        assertEquals(100, loaded.size);
+        assertEquals(data.get("key7"), loaded.get("key7"));
+
+        // Compacted into the snapshot, so only new changes are appended
+        backend.write("key7", "after");
+        assertEquals("after", reload().get("key7"));
+    }
+
+    @Test
+    public void failedCompactionIsReplayed() throws IOException {
+        JournalBackend backend = writeRecords();
+        // The snapshot is never written, like when the server crashed while storing
+        backend.beginStore();
+        backend.write("c", "4");
+        ObjectMap<String, String> data = reload();
+        assertEquals("3", data.get("a"));
+        assertEquals("4", data.get("c"));
+    }
+
+    @Test
+    public void overflowingLengthsInTailAreDropped() throws IOException {
+        writeRecords();
+        File journal = new File(path() + ".journal");
+        long valid = journal.length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal, true))) {
+            // Adds up to a negative int
+            out.writeInt(Integer.MAX_VALUE - 8);
+            out.writeInt(Integer.MAX_VALUE - 8);
+            out.write(new byte[32]);
+        }
+
+        ObjectMap<String, String> data = reload();
+        assertEquals("3", data.get("a"));
+        assertEquals("2", data.get("b"));
+        assertEquals(valid, journal.length());
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() throws IOException {
+        writeRecords();
+        File journal = new File(path() + ".journal");
+        long valid = journal.length();
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            // The start of a record for "c" that was cut off by a crash
+            out.write(new byte[]{0, 0, 0, 1, 0, 0, 0, 1, 'c'});
+        }
+
+        ObjectMap<String, String> data = reload();
+        assertEquals(null, data.get("c"));
+        assertEquals("3", data.get("a"));
+        assertEquals(valid, journal.length());
+    }
+}
@@ -0,0 +1,117 @@
+package tsrcore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Ordering of the {@link Leaderboard} treap, and keeping the money leaderboard up to date
+ */
+public class LeaderboardTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> keys(List<Leaderboard.Entry> entries) {
+        List<String> keys = new ArrayList<>();
+        for (Leaderboard.Entry entry : entries) keys.add(entry.key);
+        return keys;
+    }
+
+    private static List<String> list(String... keys) {
+        List<String> result = new ArrayList<>();
+        for (String key : keys) result.add(key);
+        return result;
+    }
+
+    @Test
+    public void highestScoreFirst() {
+        Leaderboard board = new Leaderboard();
+        board.set("a", 10);
+        board.set("b", 30);
+        board.set("c", 20);
+        assertEquals(list("b", "c", "a"), keys(board.top(10)));
+        assertEquals(1, board.rank("b"));
+        assertEquals(3, board.rank("a"));
+        assertEquals(-1, board.rank("d"));
+    }
+
+    @Test
+    public void equalScoresAreOrderedByKey() {
+        Leaderboard board = new Leaderboard();
+        board.set("b", 5);
+        board.set("a", 5);
+        board.set("c", 5);
+        assertEquals(list("a", "b", "c"), keys(board.top(10)));
+        assertEquals(2, board.rank("b"));
+    }
+
+    @Test
+    public void updatedScoreMoves() {
+        Leaderboard board = new Leaderboard();
+        board.set("a", 10);
+        board.set("b", 20);
+        board.set("a", 30);
+        assertEquals(list("a", "b"), keys(board.top(10)));
+        assertEquals(30, board.top(1).get(0).score);
+        assertEquals(2, board.size());
+    }
+
+    @Test
+    public void removedKeyIsGone() {
+        Leaderboard board = new Leaderboard();
+        board.set("a", 10);
+        board.set("b", 20);
+        board.remove("b");
+        board.remove("missing");
+        assertEquals(list("a"), keys(board.top(10)));
+        assertEquals(-1, board.rank("b"));
+        assertEquals(1, board.size());
+    }
+
+    @Test
+    public void topIsLimited() {
+        Leaderboard board = new Leaderboard();
+        for (int i = 0; i < 10; i++) board.set("k" + i, i);
+        assertEquals(list("k9", "k8", "k7"), keys(board.top(3)));
+    }
+
+    @Test
+    public void matchesSortedOrderAfterRandomChanges() {
+        Leaderboard board = new Leaderboard();
+        int[] scores = new int[200];
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(scores.length);
+            scores[key] = random.nextInt(100);
+            board.set("k" + key, scores[key]);
+        }
+        for (int key = 0; key < scores.length; key++) {
+            // Keys with a higher score, or the same score and a smaller key, are ranked before
+            int expected = 1;
+            for (int other = 0; other < scores.length; other++) {
+                if (scores[other] > scores[key] || (scores[other] == scores[key] && ("k" + other).compareTo("k" + key) < 0)) expected++;
+            }
+            assertEquals(expected, board.rank("k" + key));
+        }
+    }
+
+    @Test
+    public void moneyClearedByNonIntIsRemoved() throws IOException {
+        Money money = new Money(folder.newFile("money.properties").getPath());
+        money.set("a", 10);
+        money.set("b", 20);
+        assertEquals(1, money.rank("b"));
+        money.set("b", (String) null);
+        money.set("a", "");
+        assertEquals(-1, money.rank("b"));
+        assertEquals(-1, money.rank("a"));
+        assertEquals(0, money.top(10).size());
+    }
+}
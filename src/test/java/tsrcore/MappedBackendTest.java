@@ -0,0 +1,114 @@
+package tsrcore;
+
+import arc.struct.ObjectMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reading and writing the memory-mapped table of a {@link MappedBackend}, and rebuilding it when it is too small
+ */
+public class MappedBackendTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path() {
+        return new File(folder.getRoot(), "data.bin").getPath();
+    }
+
+    private MappedBackend open() throws IOException {
+        MappedBackend backend = new MappedBackend(path());
+        backend.load(new ObjectMap<>());
+        return backend;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder text = new StringBuilder(count);
+        for (int i = 0; i < count; i++) text.append(c);
+        return text.toString();
+    }
+
+    @Test
+    public void valuesKeepTheirText() throws IOException {
+        MappedBackend backend = open();
+        assertTrue(backend.write("int", "-42"));
+        assertTrue(backend.write("double", "1.5"));
+        assertTrue(backend.write("bool", "true"));
+        assertTrue(backend.write("ip", "1.2.3.4"));
+        assertTrue(backend.write("padded", "007"));
+
+        MappedBackend reopened = open();
+        assertEquals("-42", reopened.read("int"));
+        assertEquals("1.5", reopened.read("double"));
+        assertEquals("true", reopened.read("bool"));
+        assertEquals("1.2.3.4", reopened.read("ip"));
+        assertEquals("007", reopened.read("padded"));
+        assertNull(reopened.read("missing"));
+    }
+
+    @Test
+    public void valueTooLargeForSlotIsRebuiltOnStore() throws IOException {
+        MappedBackend backend = open();
+        backend.write("small", "1");
+        String large = repeat('x', 40000);
+        // Doesn't fit into the slot, so a store is requested instead of rebuilding right away
+        assertFalse(backend.write("large", large));
+        assertEquals(large, backend.read("large"));
+        ObjectMap<String, String> all = new ObjectMap<>();
+        backend.readAll(all);
+        assertEquals(large, all.get("large"));
+
+        backend.beginStore();
+        backend.store(new ObjectMap<>());
+        MappedBackend reopened = open();
+        assertEquals(large, reopened.read("large"));
+        assertEquals("1", reopened.read("small"));
+        // The slots are large enough now
+        assertTrue(reopened.write("large", repeat('y', 40000)));
+    }
+
+    @Test
+    public void fullTableGrowsOnStore() throws IOException {
+        MappedBackend backend = open();
+        int written = 0;
+        while (backend.write("key" + written, "value" + written)) written++;
+        assertTrue(written > 100);
+        assertEquals("value" + written, backend.read("key" + written));
+
+        backend.beginStore();
+        backend.store(new ObjectMap<>());
+        MappedBackend reopened = open();
+        for (int i = 0; i <= written; i++) assertEquals("value" + i, reopened.read("key" + i));
+        assertTrue(reopened.write("key" + (written + 1), "more"));
+    }
+
+    @Test
+    public void corruptFileIsNotReplaced() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path(), "rw")) {
+            raf.write(new byte[64]);
+        }
+        MappedBackend backend = new MappedBackend(path());
+        try {
+            backend.load(new ObjectMap<>());
+            throw new AssertionError("Loaded a corrupt file");
+        } catch (IOException expected) {
+            // The file isn't a table
+        }
+        try {
+            backend.store(new ObjectMap<>());
+            throw new AssertionError("Replaced a corrupt file");
+        } catch (IOException expected) {
+            // Kept for manual recovery
+        }
+        assertEquals(64, new File(path()).length());
+    }
+}
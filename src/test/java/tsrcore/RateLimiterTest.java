@@ -0,0 +1,57 @@
+package tsrcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Token buckets of the {@link RateLimiter}. A token is refilled every 50 milliseconds
+ */
+public class RateLimiterTest {
+    private final RateLimiter limiter = new RateLimiter(1200, 2);
+
+    @Test
+    public void burstIsLimited() {
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void keysHaveOwnBuckets() {
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+    }
+
+    @Test
+    public void tokensAreRefilled() throws InterruptedException {
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        Thread.sleep(80);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void refillStopsAtBurst() throws InterruptedException {
+        assertTrue(limiter.tryAcquire("a"));
+        Thread.sleep(300);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void fullBucketsAreRemoved() throws InterruptedException {
+        for (int i = 0; i < 100; i++) limiter.tryAcquire("key" + i);
+        assertEquals(100, limiter.size());
+        Thread.sleep(150);
+        // Checking keys sweeps the buckets from time to time
+        for (int i = 0; i < 256; i++) limiter.tryAcquire("other");
+        assertEquals(1, limiter.size());
+    }
+}
@@ -0,0 +1,89 @@
+package tsrcore;
+
+import arc.struct.ObjectMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Migrating a properties file to a {@link ShardedBackend}, and changing the amount of shards
+ */
+public class ShardedBackendTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory() {
+        return new File(folder.getRoot(), "data");
+    }
+
+    private Set<String> files() {
+        String[] names = directory().list();
+        return names == null ? new TreeSet<>() : new TreeSet<>(Arrays.asList(names));
+    }
+
+    private DataStorage legacyStorage() throws IOException {
+        File legacy = folder.newFile("data.properties");
+        DataStorage storage = new DataStorage(legacy.getPath());
+        for (int i = 0; i < 100; i++) storage.set("key" + i, "value" + i);
+        return storage;
+    }
+
+    @Test
+    public void migrationIsStoredOnLoad() throws IOException {
+        legacyStorage();
+        DataStorage storage = new DataStorage(new ShardedBackend(directory().getPath(), 4, new File(folder.getRoot(), "data.properties").getPath()));
+        assertEquals("value42", storage.getString("key42"));
+        // Written without any other change, so the migration doesn't run again
+        assertEquals(new TreeSet<>(Arrays.asList("shard-0-of-4.properties", "shard-1-of-4.properties",
+                "shard-2-of-4.properties", "shard-3-of-4.properties")), files());
+
+        ObjectMap<String, String> data = new ObjectMap<>();
+        new ShardedBackend(directory().getPath(), 4).load(data);
+        assertEquals(100, data.size);
+        assertEquals("value7", data.get("key7"));
+    }
+
+    @Test
+    public void reshardingReplacesOldShards() throws IOException {
+        legacyStorage();
+        new DataStorage(new ShardedBackend(directory().getPath(), 4, new File(folder.getRoot(), "data.properties").getPath()));
+        DataStorage storage = new DataStorage(new ShardedBackend(directory().getPath(), 2));
+        assertEquals("value99", storage.getString("key99"));
+        assertEquals(new TreeSet<>(Arrays.asList("shard-0-of-2.properties", "shard-1-of-2.properties")), files());
+
+        ObjectMap<String, String> data = new ObjectMap<>();
+        new ShardedBackend(directory().getPath(), 2).load(data);
+        assertEquals(100, data.size);
+    }
+
+    @Test
+    public void onlyChangedShardsAreStored() throws IOException {
+        legacyStorage();
+        DataStorage storage = new DataStorage(new ShardedBackend(directory().getPath(), 4, new File(folder.getRoot(), "data.properties").getPath()));
+        long[] modified = new long[4];
+        for (int i = 0; i < 4; i++) {
+            File shard = new File(directory(), "shard-" + i + "-of-4.properties");
+            assertTrue(shard.setLastModified(1000));
+            modified[i] = shard.lastModified();
+        }
+        storage.set("key1", "changed");
+
+        int rewritten = 0;
+        for (int i = 0; i < 4; i++) {
+            if (new File(directory(), "shard-" + i + "-of-4.properties").lastModified() != modified[i]) rewritten++;
+        }
+        assertEquals(1, rewritten);
+        ObjectMap<String, String> data = new ObjectMap<>();
+        new ShardedBackend(directory().getPath(), 4).load(data);
+        assertEquals("changed", data.get("key1"));
+    }
+}